@@ -23,6 +23,8 @@ import com.wire.xenon.assets.ButtonActionConfirmation;
 import com.wire.xenon.backend.models.NewBot;
 import com.wire.xenon.backend.models.QualifiedId;
 import com.wire.xenon.backend.models.SystemMessage;
+import com.wire.xenon.crypto.PreKeyInventory;
+import com.wire.xenon.crypto.PreKeyPool;
 import com.wire.xenon.models.*;
 import com.wire.xenon.models.otr.PreKey;
 import com.wire.xenon.tools.Logger;
@@ -32,6 +34,24 @@ import java.util.Collections;
 import java.util.UUID;
 
 public abstract class MessageHandlerBase {
+    protected PreKeyPool preKeyPool;
+    protected PreKeyInventory preKeyInventory;
+
+    /**
+     * @param preKeyPool Serves the prekeys uploaded by validatePreKeys from a pre-generated buffer. Used only with
+     *                   the PreKeyInventory its ids are allocated from. Null generates them on the event path
+     */
+    public void setPreKeyPool(PreKeyPool preKeyPool) {
+        this.preKeyPool = preKeyPool;
+    }
+
+    /**
+     * @param preKeyInventory Tracks the prekeys on the Backend so validatePreKeys does not list them on every event.
+     *                        A PreKeyPool used with it must allocate its ids from the inventory
+     */
+    public void setPreKeyInventory(PreKeyInventory preKeyInventory) {
+        this.preKeyInventory = preKeyInventory;
+    }
 
     /**
      * @param newBot       Initialization object for new Bot instance
@@ -215,7 +235,18 @@ public abstract class MessageHandlerBase {
     public void validatePreKeys(WireClient client, int size) {
         try {
             int minAvailable = 8 * size;
-            if (minAvailable > 0) {
+            if (minAvailable > 0 && preKeyInventory != null) {
+                UUID botId = client.getId();
+                int count = preKeyInventory.shortfall(client, size, minAvailable);
+                if (count > 0) {
+                    ArrayList<PreKey> keys = preKeyPool != null
+                            ? preKeyPool.take(botId, count, client::newPreKeys)
+                            : client.newPreKeys(preKeyInventory.reserve(botId, count), count);
+                    client.uploadPreKeys(keys);
+                    preKeyInventory.uploaded(botId, keys.size());
+                    Logger.info("Uploaded " + keys.size() + " prekeys");
+                }
+            } else if (minAvailable > 0) {
                 ArrayList<Integer> availablePrekeys = client.getAvailablePrekeys();
                 availablePrekeys.remove(Integer.valueOf(65535));  //remove the last prekey
                 if (!availablePrekeys.isEmpty() && availablePrekeys.size() < minAvailable) {
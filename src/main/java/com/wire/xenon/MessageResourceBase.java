@@ -5,13 +5,13 @@ import com.waz.model.Messages;
 import com.wire.bots.cryptobox.CryptoException;
 import com.wire.xenon.backend.GenericMessageProcessor;
 import com.wire.xenon.backend.models.*;
+import com.wire.xenon.crypto.Cipher;
+import com.wire.xenon.crypto.DecryptResult;
 import com.wire.xenon.models.MessageBase;
 import com.wire.xenon.tools.Logger;
 
 import java.io.IOException;
-import java.util.Base64;
-import java.util.List;
-import java.util.UUID;
+import java.util.*;
 
 public abstract class MessageResourceBase {
     protected final MessageHandlerBase handler;
@@ -27,20 +27,9 @@ public abstract class MessageResourceBase {
 
         switch (payload.type) {
             case "conversation.otr-message-add":
-                QualifiedId from = payload.from;
+                Logger.info("conversation.otr-message-add: bot: %s from: %s:%s", botId, payload.from, data.sender);
 
-                Logger.info("conversation.otr-message-add: bot: %s from: %s:%s", botId, from, data.sender);
-
-                GenericMessageProcessor processor = new GenericMessageProcessor(client, handler);
-
-                Messages.GenericMessage genericMessage = decryptProteus(client, payload);
-
-                final UUID messageId = UUID.fromString(genericMessage.getMessageId());
-                MessageBase msgBase = new MessageBase(eventId, messageId, payload.conversation, data.sender, from, payload.time);
-
-                processor.process(msgBase, genericMessage);
-
-                handler.onEvent(client, from, genericMessage);
+                onProteusMessage(eventId, payload, client, decryptProteus(client, payload));
                 break;
             case "conversation.mls-message-add":
                 QualifiedId fromMls = payload.from;
@@ -71,7 +60,7 @@ public abstract class MessageResourceBase {
 
                 // Check if this bot got added to the conversation
                 List<QualifiedId> participants = data.userIds;
-                if (participants.remove(new QualifiedId(botId, null))) {
+                if (participants.remove(QualifiedId.of(botId, null))) {
                     SystemMessage systemMessage = getSystemMessage(eventId, payload);
                     systemMessage.conversation = client.getConversation();
                     systemMessage.type = "conversation.create"; //hack the type
@@ -96,12 +85,13 @@ public abstract class MessageResourceBase {
 
                 // Check if this bot got removed from the conversation
                 participants = data.userIds;
-                if (participants.remove(new QualifiedId(botId, null))) {
+                if (participants.remove(QualifiedId.of(botId, null))) {
                     handler.onBotRemoved(botId, systemMessage);
                     return;
                 }
 
                 if (!participants.isEmpty()) {
+                    client.removeDevices(participants);
                     handler.onMemberLeave(client, systemMessage);
                 }
                 break;
@@ -170,6 +160,54 @@ public abstract class MessageResourceBase {
         }
     }
 
+    /**
+     * Handles the events of one bot that were queued, while the bot was offline for example. The Proteus messages
+     * among them are decrypted in one batch, the events are then handled in the given order as by
+     * {@link #handleMessage}. A message that failed to decrypt is logged and skipped, the other events are still
+     * handled.
+     *
+     * @param events Events in the order they were received, by event id
+     * @param client Client of the bot
+     */
+    protected void handleMessages(Map<UUID, Payload> events, WireClient client) throws Exception {
+        List<Cipher> ciphers = new ArrayList<>();
+        for (Payload payload : events.values()) {
+            if (payload.type.equals("conversation.otr-message-add"))
+                ciphers.add(new Cipher(payload.from, payload.data.sender, payload.data.text));
+        }
+        Iterator<DecryptResult> decrypted = ciphers.isEmpty()
+                ? Collections.emptyIterator()
+                : client.decryptProteusBatch(ciphers).iterator();
+
+        for (Map.Entry<UUID, Payload> event : events.entrySet()) {
+            UUID eventId = event.getKey();
+            Payload payload = event.getValue();
+            if (!payload.type.equals("conversation.otr-message-add")) {
+                handleMessage(eventId, payload, client);
+                continue;
+            }
+
+            Logger.info("conversation.otr-message-add: bot: %s from: %s:%s", client.getId(), payload.from, payload.data.sender);
+            DecryptResult result = decrypted.next();
+            if (!result.isOk()) {
+                Logger.exception(result.error, "handleMessages: bot: %s, event: %s", client.getId(), eventId);
+                continue;
+            }
+            onProteusMessage(eventId, payload, client, Messages.GenericMessage.parseFrom(result.content));
+        }
+    }
+
+    private void onProteusMessage(UUID eventId, Payload payload, WireClient client, Messages.GenericMessage genericMessage) {
+        GenericMessageProcessor processor = new GenericMessageProcessor(client, handler);
+
+        final UUID messageId = UUID.fromString(genericMessage.getMessageId());
+        MessageBase msgBase = new MessageBase(eventId, messageId, payload.conversation, payload.data.sender, payload.from, payload.time);
+
+        processor.process(msgBase, genericMessage);
+
+        handler.onEvent(client, payload.from, genericMessage);
+    }
+
     private SystemMessage getSystemMessage(UUID eventId, Payload payload) {
         SystemMessage systemMessage = new SystemMessage();
         systemMessage.id = eventId;
@@ -198,9 +236,8 @@ public abstract class MessageResourceBase {
         String sender = payload.data.sender;
         String cipher = payload.data.text;
 
-        String encoded = client.decryptProteus(from, sender, cipher);
-        byte[] decoded = Base64.getDecoder().decode(encoded);
-        return Messages.GenericMessage.parseFrom(decoded);
+        byte[] decrypted = client.decryptProteus(from, sender, Base64.getDecoder().decode(cipher));
+        return Messages.GenericMessage.parseFrom(decrypted);
     }
 
     private Messages.GenericMessage decryptMls(WireClient client, Payload payload)
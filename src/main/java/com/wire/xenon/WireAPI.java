@@ -1,5 +1,6 @@
 package com.wire.xenon;
 
+import com.wire.messages.Otr;
 import com.wire.xenon.assets.IAsset;
 import com.wire.xenon.backend.KeyPackageUpdate;
 import com.wire.xenon.backend.models.*;
@@ -19,6 +20,31 @@ public interface WireAPI {
 
     Devices sendPartialMessage(OtrMessage msg, QualifiedId userId) throws HttpException;
 
+    /**
+     * @return TRUE if this API posts the messages as protobuf, see {@link #sendMessage(Otr.QualifiedNewOtrMessage)}
+     */
+    default boolean supportsProtobuf() {
+        return false;
+    }
+
+    /**
+     * Posts the message as protobuf (application/x-protobuf). The ciphers are sent as raw bytes so there is no
+     * Base64 overhead. The client mismatch strategy set in the message replaces the ignoreMissing/userId arguments
+     * of the JSON variants. The default implementation falls back to the JSON body.
+     *
+     * @param msg Protobuf envelope, see {@link OtrProtobuf}
+     * @return Missing, redundant and deleted devices
+     * @throws HttpException http error
+     */
+    default Devices sendMessage(Otr.QualifiedNewOtrMessage msg) throws HttpException {
+        OtrMessage otr = OtrProtobuf.toOtrMessage(msg);
+        if (msg.hasReportOnly()) {
+            Otr.QualifiedUserId userId = msg.getReportOnly().getUserIds(0);
+            return sendPartialMessage(otr, QualifiedId.of(UUID.fromString(userId.getId()), userId.getDomain()));
+        }
+        return sendMessage(otr, msg.hasIgnoreAll());
+    }
+
     Collection<User> getUsers(Collection<QualifiedId> ids);
 
     User getSelf();
@@ -24,16 +24,21 @@ import com.wire.xenon.assets.IGeneric;
 import com.wire.xenon.backend.models.Conversation;
 import com.wire.xenon.backend.models.QualifiedId;
 import com.wire.xenon.backend.models.User;
+import com.wire.xenon.crypto.Cipher;
+import com.wire.xenon.crypto.DecryptResult;
 import com.wire.xenon.exceptions.HttpException;
 import com.wire.xenon.models.AssetKey;
+import com.wire.xenon.models.SendReport;
 import com.wire.xenon.models.otr.PreKey;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Thread safe class for postings into this conversation
@@ -58,6 +63,45 @@ public interface WireClient extends Closeable {
      */
     void send(IGeneric message, QualifiedId userId) throws Exception;
 
+    /**
+     * Post a generic message into conversation without blocking on the encryption and the Backend.
+     * Messages sent into the same conversation are delivered in the order this method was called, while
+     * the encryption of the next message overlaps with sending of the previous one.
+     * The default implementation sends synchronously with {@link #send(IGeneric)}.
+     *
+     * @param message generic message (Text, Image, File, Reply, Mention, ...)
+     * @return Future completed once the message is accepted by the Backend
+     */
+    default CompletableFuture<SendReport> sendAsync(IGeneric message) {
+        return sendAsync(message, null);
+    }
+
+    /**
+     * @param message generic message (Text, Image, File, Reply, Mention, ...)
+     * @param userId  ignore all other participants except this user
+     * @return Future completed once the message is accepted by the Backend
+     */
+    default CompletableFuture<SendReport> sendAsync(IGeneric message, QualifiedId userId) {
+        try {
+            if (userId == null)
+                send(message);
+            else
+                send(message, userId);
+            return CompletableFuture.completedFuture(new SendReport(message.getMessageId(), 0, null));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Invoked by the sdk when participants leave this conversation so that their devices are no longer encrypted for.
+     * Devices of the participants that join are learned from the Backend on the next send.
+     *
+     * @param userIds Users that left this conversation
+     */
+    default void removeDevices(Collection<QualifiedId> userIds) {
+    }
+
     /**
      * This method downloads asset from the Backend.
      *
@@ -145,6 +189,43 @@ public interface WireClient extends Closeable {
      */
     String decryptProteus(QualifiedId userId, String clientId, String cypher) throws CryptoException;
 
+    /**
+     * Same as {@link #decryptProteus(QualifiedId, String, String)} without Base64 on either side.
+     * The default implementation encodes and decodes around {@link #decryptProteus(QualifiedId, String, String)}.
+     *
+     * @param userId   Sender's User id
+     * @param clientId Sender's Client id
+     * @param cypher   Encrypted bytes
+     * @return byte array of decrypted text, according to protobuf definition
+     * @throws CryptoException
+     */
+    default byte[] decryptProteus(QualifiedId userId, String clientId, byte[] cypher) throws CryptoException {
+        String decrypted = decryptProteus(userId, clientId, Base64.getEncoder().encodeToString(cypher));
+        return decrypted == null ? null : Base64.getDecoder().decode(decrypted);
+    }
+
+    /**
+     * Decrypt many Proteus ciphers at once, for example the events queued while the bot was offline.
+     * The default implementation decrypts them one by one with {@link #decryptProteus(QualifiedId, String, byte[])}.
+     *
+     * @param ciphers Ciphers in the order they were received
+     * @return One result per cipher, in the same order. A cipher that failed to decrypt carries its error
+     * @throws CryptoException if the updated sessions could not be stored, none of the results can be used then
+     */
+    default List<DecryptResult> decryptProteusBatch(List<Cipher> ciphers) throws CryptoException {
+        List<DecryptResult> ret = new ArrayList<>(ciphers.size());
+        for (Cipher cipher : ciphers) {
+            try {
+                ret.add(DecryptResult.ok(cipher, decryptProteus(cipher.userId, cipher.clientId, Base64.getDecoder().decode(cipher.cypher))));
+            } catch (CryptoException e) {
+                ret.add(DecryptResult.failed(cipher, e));
+            } catch (IllegalArgumentException e) {
+                ret.add(DecryptResult.failed(cipher, new CryptoException(e)));
+            }
+        }
+        return ret;
+    }
+
     /**
      * Decrypt MLS cipher either using existing group.
      *
@@ -2,28 +2,40 @@ package com.wire.xenon;
 
 import com.wire.bots.cryptobox.CryptoException;
 import com.wire.crypto.client.Ciphersuite;
+import com.wire.messages.Otr;
 import com.wire.xenon.assets.IAsset;
 import com.wire.xenon.assets.IGeneric;
 import com.wire.xenon.backend.KeyPackageUpdate;
 import com.wire.xenon.backend.models.*;
+import com.wire.xenon.cache.DevicesCache;
+import com.wire.xenon.crypto.Cipher;
 import com.wire.xenon.crypto.Crypto;
+import com.wire.xenon.crypto.DecryptResult;
 import com.wire.xenon.crypto.mls.CryptoMlsClient;
 import com.wire.xenon.exceptions.HttpException;
 import com.wire.xenon.models.AssetKey;
+import com.wire.xenon.models.SendReport;
 import com.wire.xenon.models.otr.*;
+import com.wire.xenon.outbound.PreKeysCoalescer;
+import com.wire.xenon.outbound.RetryPolicy;
+import com.wire.xenon.outbound.SendPipeline;
 import com.wire.xenon.tools.Logger;
 import com.wire.xenon.tools.Util;
 
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 public class WireClientBase implements WireClient {
     protected final WireAPI api;
     protected final Crypto crypto;
     protected final CryptoMlsClient cryptoMlsClient;
     protected final NewBot state;
-    protected Devices devices = null;
+    protected DevicesCache devicesCache = DevicesCache.getDefault();
+    protected SendPipeline sendPipeline = SendPipeline.getDefault();
+    protected PreKeysCoalescer preKeysCoalescer = PreKeysCoalescer.getDefault();
+    protected RetryPolicy retryPolicy = RetryPolicy.getDefault();
 
     public WireClientBase(WireAPI api, Crypto crypto, CryptoMlsClient cryptoMlsClient, NewBot state) {
         this.api = api;
@@ -32,6 +44,34 @@ public class WireClientBase implements WireClient {
         this.state = state;
     }
 
+    /**
+     * @param devicesCache Cache holding the devices of this conversation. By default, the process wide instance is used
+     */
+    public void setDevicesCache(DevicesCache devicesCache) {
+        this.devicesCache = devicesCache;
+    }
+
+    /**
+     * @param sendPipeline Pipeline running the asynchronous sends. By default, the process wide instance is used
+     */
+    public void setSendPipeline(SendPipeline sendPipeline) {
+        this.sendPipeline = sendPipeline;
+    }
+
+    /**
+     * @param preKeysCoalescer Coalesces the prekey fallback of concurrent sends. By default, the process wide instance is used
+     */
+    public void setPreKeysCoalescer(PreKeysCoalescer preKeysCoalescer) {
+        this.preKeysCoalescer = preKeysCoalescer;
+    }
+
+    /**
+     * @param retryPolicy Retries the calls to the Backend made when sending. By default, the process wide instance is used
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
     @Override
     public void send(IGeneric message) throws Exception {
         postGenericMessage(message);
@@ -42,6 +82,16 @@ public class WireClientBase implements WireClient {
         postGenericMessage(message, userId);
     }
 
+    @Override
+    public CompletableFuture<SendReport> sendAsync(IGeneric message) {
+        return sendPipeline.submit(getConversationKey(), () -> prepare(message, null), this::deliver);
+    }
+
+    @Override
+    public CompletableFuture<SendReport> sendAsync(IGeneric message, QualifiedId userId) {
+        return sendPipeline.submit(getConversationKey(), () -> prepare(message, userId), this::deliver);
+    }
+
     @Override
     public UUID getId() {
         return state.id;
@@ -73,81 +123,83 @@ public class WireClientBase implements WireClient {
      * devices.
      *
      * @param generic generic message to be sent
+     * @return Report of the sent message
      * @throws Exception CryptoBox exception
      */
-    protected void postGenericMessage(IGeneric generic) throws Exception {
-        byte[] content = generic.createGenericMsg().toByteArray();
-
-        // Try to encrypt the msg for those devices that we have the session already
-        Recipients encrypt = encrypt(content, getAllDevices());
-        OtrMessage msg = new OtrMessage(getDeviceId(), encrypt);
-
-        Devices res = api.sendMessage(msg, false);
-        if (!res.hasMissing()) {
-            // Fetch preKeys for the missing devices from the Backend
-            PreKeys preKeys = api.getPreKeys(res.missing);
-
-            Logger.debug("Fetched %d preKeys for %d devices. Bot: %s", preKeys.count(), res.size(), getId());
-
-            // Encrypt msg for those devices that were missing. This time using preKeys
-            encrypt = crypto.encrypt(preKeys, content);
-            msg.add(encrypt);
-
-            // reset devices so they could be pulled next time
-            devices = null;
-
-            res = api.sendMessage(msg, true);
-            if (!res.hasMissing()) {
-                Logger.error(String.format("Failed to send otr message to %d devices. Bot: %s",
-                        res.size(),
-                        getId()));
-            }
-        }
+    protected SendReport postGenericMessage(IGeneric generic) throws Exception {
+        return deliver(prepare(generic, null));
     }
 
     /**
      * Encrypt and send message to a specific user. Proteus only,.
      * @param userId the user to send the message to
      * @param generic generic message to be sent
+     * @return Report of the sent message
      * @throws Exception CryptoBox exception
      */
-    protected void postGenericMessage(IGeneric generic, QualifiedId userId) throws Exception {
-        // Try to encrypt the msg for those devices that we have the Proteus session already
-        Missing all = getAllDevices();
-        Missing missing = new Missing();
-        for (QualifiedId u : all.toUserIds()) {
-            if (userId.equals(u)) {
-                Collection<String> clients = all.toClients(u);
-                missing.add(u, clients);
-            }
+    protected SendReport postGenericMessage(IGeneric generic, QualifiedId userId) throws Exception {
+        return deliver(prepare(generic, userId));
+    }
+
+    /**
+     * First phase of sending: serialize the message and encrypt it for those devices that we have the session already
+     *
+     * @param generic generic message to be sent
+     * @param userId  the only user to send the message to. Null means everybody in this conversation
+     */
+    private Outgoing prepare(IGeneric generic, QualifiedId userId) throws Exception {
+        DeviceSet devices = getAllDevices();
+        if (userId != null) {
+            devices = devices.only(userId);
         }
 
         byte[] content = generic.createGenericMsg().toByteArray();
 
-        Recipients encrypt = encrypt(content, missing);
-        OtrMessage msg = new OtrMessage(getDeviceId(), encrypt);
-
-        Devices res = api.sendPartialMessage(msg, userId);
-        if (!res.hasMissing()) {
-            // Fetch preKeys for the missing devices from the Backend
-            PreKeys preKeys = api.getPreKeys(res.missing);
-
-            Logger.debug("Fetched %d preKeys for %d devices. Bot: %s", preKeys.count(), res.size(), getId());
-
-            // Encrypt msg for those devices that were missing. This time using preKeys
-            encrypt = crypto.encrypt(preKeys, content);
-            msg.add(encrypt);
+        RawRecipients encrypt = crypto.encryptRaw(devices, content);
+        return new Outgoing(generic.getMessageId(), userId, content, encrypt);
+    }
 
-            // reset devices so they could be pulled next time
-            devices = null;
+    /**
+     * Second phase of sending: post the message to the Backend.
+     * Implements the fallback for the 412 error code and missing devices.
+     */
+    private SendReport deliver(Outgoing outgoing) throws Exception {
+        RawRecipients recipients = outgoing.recipients;
 
-            res = api.sendMessage(msg, true);
+        Devices res = post(recipients, outgoing.userId, false);
+        devicesCache.update(getConversationKey(), res);
+        if (!res.hasMissing()) {
+            // Encrypt msg for those devices that were missing. This time using preKeys fetched from the Backend,
+            // unless a concurrent send already established the sessions for them
+            RawRecipients encrypt = preKeysCoalescer.encrypt(getId(), crypto, res.missing, outgoing.content,
+                    missing -> retryPolicy.call(() -> api.getPreKeys(missing)));
+            recipients.add(encrypt);
+
+            res = post(recipients, null, true);
+            devicesCache.update(getConversationKey(), res);
             if (!res.hasMissing()) {
                 Logger.error(String.format("Failed to send otr message to %d devices. Bot: %s",
                         res.size(),
                         getId()));
             }
         }
+        return new SendReport(outgoing.messageId, recipients.count(), res);
+    }
+
+    /**
+     * Posts the ciphers as protobuf when the API supports it, as JSON otherwise. The JSON body is streamed straight
+     * from the raw ciphers
+     */
+    private Devices post(RawRecipients recipients, QualifiedId userId, boolean ignoreMissing) throws Exception {
+        if (api.supportsProtobuf()) {
+            Otr.QualifiedNewOtrMessage msg = OtrProtobuf.build(getDeviceId(), recipients, userId, ignoreMissing);
+            return retryPolicy.call(() -> api.sendMessage(msg));
+        }
+
+        OtrMessage msg = new OtrMessage(getDeviceId(), recipients);
+        return retryPolicy.call(() -> userId == null || ignoreMissing
+                ? api.sendMessage(msg, ignoreMissing)
+                : api.sendPartialMessage(msg, userId));
     }
 
     @Override
@@ -205,6 +257,16 @@ public class WireClientBase implements WireClient {
         return crypto.decrypt(userId, clientId, cypher);
     }
 
+    @Override
+    public byte[] decryptProteus(QualifiedId userId, String clientId, byte[] cypher) throws CryptoException {
+        return crypto.decrypt(userId, clientId, cypher);
+    }
+
+    @Override
+    public List<DecryptResult> decryptProteusBatch(List<Cipher> ciphers) throws CryptoException {
+        return crypto.decryptBatch(ciphers);
+    }
+
     @Override
     public byte[] decryptMls(String mlsGroupId, String cypher) {
         return cryptoMlsClient.decrypt(mlsGroupId, cypher);
@@ -306,8 +368,20 @@ public class WireClientBase implements WireClient {
         return api.deleteConversation(teamId);
     }
 
-    private Missing getAllDevices() throws HttpException {
-        return getDevices().missing;
+    @Override
+    public void removeDevices(Collection<QualifiedId> userIds) {
+        devicesCache.remove(getConversationKey(), userIds);
+    }
+
+    private DeviceSet getAllDevices() throws HttpException {
+        return devicesCache.get(getConversationKey(), this::getDevices);
+    }
+
+    /**
+     * @return Key identifying this conversation as seen by this client. Used to cache devices and to order the sends
+     */
+    protected String getConversationKey() {
+        return String.format("%s_%s", getConversationId(), getDeviceId());
     }
 
     /**
@@ -316,12 +390,34 @@ public class WireClientBase implements WireClient {
      *
      * @return List of all participants in this conversation and their clientIds
      */
-    private Devices getDevices() throws HttpException {
-        if (devices == null || devices.hasMissing()) {
-            String deviceId = getDeviceId();
-            OtrMessage msg = new OtrMessage(deviceId, new Recipients());
-            devices = api.sendMessage(msg, false);
+    private Missing getDevices() throws HttpException {
+        String deviceId = getDeviceId();
+        OtrMessage msg = new OtrMessage(deviceId, new Recipients());
+        Devices devices;
+        try {
+            devices = retryPolicy.call(() -> api.sendMessage(msg, false));
+        } catch (HttpException | RuntimeException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return devices != null ? devices.missing : new Missing();
+    }
+
+    private static class Outgoing {
+        private final UUID messageId;
+        private final QualifiedId userId;
+        private final byte[] content;
+        private final RawRecipients recipients;
+
+        Outgoing(UUID messageId, QualifiedId userId, byte[] content, RawRecipients recipients) {
+            this.messageId = messageId;
+            this.userId = userId;
+            this.content = content;
+            this.recipients = recipients;
         }
-        return devices != null ? devices : new Devices();
     }
 }
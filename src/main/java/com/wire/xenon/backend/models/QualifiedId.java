@@ -3,8 +3,8 @@ package com.wire.xenon.backend.models;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
 
@@ -12,10 +12,17 @@ import javax.validation.constraints.NotNull;
 import java.io.IOException;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
 @JsonDeserialize(using = QualifiedId.Deserializer.class)
 public class QualifiedId {
+    private static final int MAX_DOMAINS = 1_000;
+    private static final ConcurrentHashMap<String, String> domains = new ConcurrentHashMap<>();
+
+    // hash and string form of the current id and domain. Replaced when the public fields are changed
+    private transient volatile Cache cache;
+
     public QualifiedId(UUID id, String domain) {
         this.id = Objects.requireNonNull(id, "UUID cannot be null");
         this.domain = domain;
@@ -31,6 +38,30 @@ public class QualifiedId {
     @JsonProperty
     public String domain;
 
+    /**
+     * Id with an interned domain string, so comparing the domains of ids is mostly a reference check. The ids
+     * themselves are not interned: there can be millions of them, and a table of them would have to be bounded
+     * and would start over all the time. The hash and string form of every instance are computed only once.
+     *
+     * @param id     User id
+     * @param domain Backend domain. Null means local
+     * @return New instance
+     */
+    public static QualifiedId of(UUID id, String domain) {
+        return new QualifiedId(id, internDomain(domain));
+    }
+
+    private static String internDomain(String domain) {
+        if (domain == null)
+            return null;
+        String ret = domains.putIfAbsent(domain, domain);
+        if (ret != null)
+            return ret;
+        if (domains.size() > MAX_DOMAINS)
+            domains.clear();
+        return domain;
+    }
+
     /**
      * Custom deserializer to handle a both a fully-qualified id and a simple UUID value.
      *
@@ -52,17 +83,33 @@ public class QualifiedId {
 
         @Override
         public QualifiedId deserialize(JsonParser jp, DeserializationContext ctxt) throws IOException {
-            JsonNode node = jp.getCodec().readTree(jp);
-            if (node.has("id") && node.has("domain")) {
-                UUID id = UUID.fromString(node.get("id").asText());
-                String domain = node.get("domain").isNull() ? null : node.get("domain").asText();
-                return new QualifiedId(id, domain);
-            } else if (node.isTextual()) {
-                UUID id = UUID.fromString(node.asText());
+            if (jp.currentToken() == JsonToken.VALUE_STRING) {
+                UUID id = UUID.fromString(jp.getText());
                 return new QualifiedId(id, null);
-            } else {
+            }
+            if (jp.currentToken() != JsonToken.START_OBJECT) {
+                throw new RuntimeException("unable to parse");
+            }
+
+            UUID id = null;
+            String domain = null;
+            boolean hasDomain = false;
+            while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                String field = jp.currentName();
+                JsonToken value = jp.nextToken();
+                if ("id".equals(field) && value != JsonToken.VALUE_NULL) {
+                    id = UUID.fromString(jp.getText());
+                } else if ("domain".equals(field)) {
+                    hasDomain = true;
+                    domain = value == JsonToken.VALUE_NULL ? null : jp.getText();
+                } else {
+                    jp.skipChildren();
+                }
+            }
+            if (id == null || !hasDomain) {
                 throw new RuntimeException("unable to parse");
             }
+            return new QualifiedId(id, domain);
         }
     }
 
@@ -76,11 +123,40 @@ public class QualifiedId {
 
     @Override
     public int hashCode() {
-        return Objects.hash(id, domain);
+        return cache().hash;
     }
 
     @Override
     public String toString() {
-        return id + "_" + domain;
+        Cache cache = cache();
+        String ret = cache.string;
+        if (ret == null) {
+            ret = id + "_" + domain;
+            cache.string = ret;
+        }
+        return ret;
+    }
+
+    private Cache cache() {
+        Cache ret = cache;
+        if (ret == null || ret.id != id || ret.domain != domain) {
+            ret = new Cache(id, domain);
+            cache = ret;
+        }
+        return ret;
+    }
+
+    private static class Cache {
+        private final UUID id;
+        private final String domain;
+        // same value as Objects.hash(id, domain)
+        private final int hash;
+        private volatile String string;
+
+        Cache(UUID id, String domain) {
+            this.id = id;
+            this.domain = domain;
+            this.hash = 31 * (31 + Objects.hashCode(id)) + Objects.hashCode(domain);
+        }
     }
 }
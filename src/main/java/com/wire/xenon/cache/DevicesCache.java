@@ -0,0 +1,268 @@
+package com.wire.xenon.cache;
+
+import com.wire.xenon.backend.models.QualifiedId;
+import com.wire.xenon.exceptions.HttpException;
+import com.wire.xenon.models.otr.DeviceSet;
+import com.wire.xenon.models.otr.Devices;
+import com.wire.xenon.models.otr.Missing;
+import com.wire.xenon.tools.Logger;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread safe cache of the devices (clients) participating in conversations.
+ *
+ * <p>
+ *     The first tier lives in memory and is shared by all the WireClients in this process. The optional second tier
+ *     ({@link DevicesStore}) is shared by all the nodes. Entries expire after the given time to live and concurrent
+ *     misses for the same conversation result in only one discovery call to the backend. The first tier holds at
+ *     most {@code maxSize} conversations, the least recently used one is dropped first.
+ *     Cached device lists are immutable {@link DeviceSet}s: every change replaces the whole entry.
+ * </p>
+ */
+public class DevicesCache {
+    private static final int DEFAULT_MAX_SIZE = 10_000;
+    private static final DevicesCache DEFAULT = new DevicesCache(Duration.ofMinutes(10), null);
+
+    // guarded by itself
+    private final LinkedHashMap<String, Entry> entries;
+    private final ConcurrentHashMap<String, CompletableFuture<DeviceSet>> loading = new ConcurrentHashMap<>();
+    private final long ttl;
+    private final DevicesStore store;
+
+    /**
+     * @param ttl   How long the device list of a conversation is trusted before it is discovered again
+     * @param store Shared tier. Can be null
+     */
+    public DevicesCache(Duration ttl, DevicesStore store) {
+        this(ttl, store, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param ttl     How long the device list of a conversation is trusted before it is discovered again
+     * @param store   Shared tier. Can be null
+     * @param maxSize Maximal number of conversations kept in memory
+     */
+    public DevicesCache(Duration ttl, DevicesStore store, int maxSize) {
+        this.ttl = ttl.toMillis();
+        this.store = store;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return Process wide, in-memory only instance used by the WireClients by default
+     */
+    public static DevicesCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the cached devices or loads them. Only one loader per key is run at the time, other callers wait for
+     * its result.
+     *
+     * @param key    Conversation/client key
+     * @param loader Called when neither tier has a valid entry
+     * @return Devices in this conversation
+     * @throws HttpException when the loader fails
+     */
+    public DeviceSet get(String key, Loader loader) throws HttpException {
+        DeviceSet cached = cached(key);
+        if (cached != null)
+            return cached;
+
+        CompletableFuture<DeviceSet> future = new CompletableFuture<>();
+        CompletableFuture<DeviceSet> pending = loading.putIfAbsent(key, future);
+        if (pending != null)
+            return await(pending);
+
+        try {
+            // another loader may have finished between the first lookup and taking its place
+            DeviceSet devices = cached(key);
+            if (devices == null) {
+                devices = fromStore(key);
+                if (devices == null) {
+                    devices = DeviceSet.of(loader.load());
+                    toStore(key, devices);
+                }
+                synchronized (entries) {
+                    entries.put(key, new Entry(devices, System.currentTimeMillis() + ttl));
+                }
+            }
+            future.complete(devices);
+            return devices;
+        } catch (HttpException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    /**
+     * Applies the backend's response to a sent message: {@code missing} devices are added while {@code redundant}
+     * and {@code deleted} ones are removed.
+     *
+     * @param key     Conversation/client key
+     * @param devices Response to the message that was sent into this conversation
+     */
+    public void update(String key, Devices devices) {
+        if (devices == null)
+            return;
+        if (devices.missing.isEmpty() && devices.redundant.isEmpty() && devices.deleted.isEmpty())
+            return;
+
+        Entry updated;
+        synchronized (entries) {
+            updated = entries.computeIfPresent(key, (k, entry) -> new Entry(merge(entry.devices, devices), entry.expires));
+        }
+        if (updated != null)
+            toStore(key, updated.devices);
+    }
+
+    /**
+     * Removes all the devices of the given users, when they leave the conversation for example.
+     *
+     * @param key     Conversation/client key
+     * @param userIds Users to be removed. Null domain matches the user on any domain
+     */
+    public void remove(String key, Collection<QualifiedId> userIds) {
+        Entry updated;
+        synchronized (entries) {
+            updated = entries.computeIfPresent(key, (k, entry) -> new Entry(without(entry.devices, userIds), entry.expires));
+        }
+        if (updated != null)
+            toStore(key, updated.devices);
+    }
+
+    public void invalidate(String key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+        if (store != null) {
+            try {
+                store.remove(key);
+            } catch (Exception e) {
+                Logger.exception(e, "DevicesCache: failed to remove %s", key);
+            }
+        }
+    }
+
+    /**
+     * @return Number of conversations kept in memory
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    // expired entries are dropped on access
+    private DeviceSet cached(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null)
+                return null;
+            if (entry.isExpired()) {
+                entries.remove(key);
+                return null;
+            }
+            return entry.devices;
+        }
+    }
+
+    private DeviceSet fromStore(String key) {
+        if (store == null)
+            return null;
+        try {
+            return store.get(key);
+        } catch (Exception e) {
+            Logger.exception(e, "DevicesCache: failed to fetch %s", key);
+            return null;
+        }
+    }
+
+    private void toStore(String key, DeviceSet devices) {
+        if (store == null)
+            return;
+        try {
+            store.put(key, devices);
+        } catch (Exception e) {
+            Logger.exception(e, "DevicesCache: failed to store %s", key);
+        }
+    }
+
+    private static DeviceSet await(CompletableFuture<DeviceSet> future) throws HttpException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof HttpException)
+                throw (HttpException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    private static DeviceSet merge(DeviceSet cached, Devices res) {
+        Set<QualifiedId> userIds = new LinkedHashSet<>(cached.toUserIds());
+        userIds.addAll(res.missing.toUserIds());
+
+        Missing ret = new Missing();
+        for (QualifiedId userId : userIds) {
+            Set<String> clients = new LinkedHashSet<>(cached.toClients(userId));
+            clients.addAll(clients(res.missing, userId));
+            clients.removeAll(clients(res.redundant, userId));
+            clients.removeAll(clients(res.deleted, userId));
+            if (!clients.isEmpty())
+                ret.add(userId, new ArrayList<>(clients));
+        }
+        return DeviceSet.of(ret);
+    }
+
+    private static DeviceSet without(DeviceSet cached, Collection<QualifiedId> userIds) {
+        Missing ret = new Missing();
+        for (QualifiedId userId : cached.toUserIds()) {
+            boolean removed = userIds.stream()
+                    .anyMatch(u -> u.id.equals(userId.id) && (u.domain == null || u.domain.equals(userId.domain)));
+            if (!removed)
+                ret.add(userId, cached.toClients(userId));
+        }
+        return DeviceSet.of(ret);
+    }
+
+    private static Collection<String> clients(Missing missing, QualifiedId userId) {
+        // ConcurrentHashMap rejects null keys, unqualified users go by the empty domain as in OtrProtobuf
+        Map<UUID, Collection<String>> users = missing.get(userId.domain != null ? userId.domain : "");
+        if (users == null)
+            return Collections.emptyList();
+        Collection<String> clients = users.get(userId.id);
+        return clients != null ? clients : Collections.emptyList();
+    }
+
+    public interface Loader {
+        Missing load() throws HttpException;
+    }
+
+    private static class Entry {
+        private final DeviceSet devices;
+        private final long expires;
+
+        Entry(DeviceSet devices, long expires) {
+            this.devices = devices;
+            this.expires = expires;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() > expires;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.wire.xenon.cache;
+
+import org.jdbi.v3.sqlobject.customizer.Bind;
+import org.jdbi.v3.sqlobject.statement.SqlQuery;
+import org.jdbi.v3.sqlobject.statement.SqlUpdate;
+
+public interface DevicesDAO {
+    @SqlUpdate("INSERT INTO Devices (id, data, updated) " +
+            "VALUES (:id, to_json(:data::json), :updated) " +
+            "ON CONFLICT (id) DO UPDATE SET data = EXCLUDED.data, updated = EXCLUDED.updated")
+    int insert(@Bind("id") String id,
+               @Bind("data") String data,
+               @Bind("updated") long updated);
+
+    @SqlQuery("SELECT data FROM Devices WHERE id = :id AND updated > :since")
+    String get(@Bind("id") String id,
+               @Bind("since") long since);
+
+    @SqlUpdate("DELETE FROM Devices WHERE id = :id")
+    int delete(@Bind("id") String id);
+}
@@ -0,0 +1,21 @@
+package com.wire.xenon.cache;
+
+import com.wire.xenon.models.otr.DeviceSet;
+
+import java.io.IOException;
+
+/**
+ * Shared (second) tier of the {@link DevicesCache}. Lets all the nodes serving the same bot reuse the device list
+ * discovered by any of them.
+ */
+public interface DevicesStore {
+    /**
+     * @param key Conversation/client key as produced by the WireClient
+     * @return Cached devices or null if there are none or they have expired
+     */
+    DeviceSet get(String key) throws IOException;
+
+    void put(String key, DeviceSet devices) throws IOException;
+
+    void remove(String key) throws IOException;
+}
@@ -0,0 +1,40 @@
+package com.wire.xenon.cache;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wire.xenon.models.otr.DeviceSet;
+import org.jdbi.v3.core.Jdbi;
+
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * Postgres backed {@link DevicesStore}. Entries older than the given time to live are ignored.
+ */
+public class JdbiDevicesStore implements DevicesStore {
+    private final static ObjectMapper mapper = new ObjectMapper();
+
+    private final DevicesDAO devicesDAO;
+    private final long ttl;
+
+    public JdbiDevicesStore(Jdbi jdbi, Duration ttl) {
+        this.devicesDAO = jdbi.onDemand(DevicesDAO.class);
+        this.ttl = ttl.toMillis();
+    }
+
+    @Override
+    public DeviceSet get(String key) throws IOException {
+        String str = devicesDAO.get(key, System.currentTimeMillis() - ttl);
+        return str != null ? mapper.readValue(str, DeviceSet.class) : null;
+    }
+
+    @Override
+    public void put(String key, DeviceSet devices) throws IOException {
+        String str = mapper.writeValueAsString(devices);
+        devicesDAO.insert(key, str, System.currentTimeMillis());
+    }
+
+    @Override
+    public void remove(String key) {
+        devicesDAO.delete(key);
+    }
+}
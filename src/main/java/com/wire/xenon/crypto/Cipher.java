@@ -0,0 +1,23 @@
+package com.wire.xenon.crypto;
+
+import com.wire.xenon.backend.models.QualifiedId;
+
+/**
+ * One inbound Proteus cipher, as found in a {@code conversation.otr-message-add} event
+ */
+public class Cipher {
+    public final QualifiedId userId;
+    public final String clientId;
+    public final String cypher;
+
+    /**
+     * @param userId   Sender's User id
+     * @param clientId Sender's Client id
+     * @param cypher   Encrypted, Base64 encoded string
+     */
+    public Cipher(QualifiedId userId, String clientId, String cypher) {
+        this.userId = userId;
+        this.clientId = clientId;
+        this.cypher = cypher;
+    }
+}
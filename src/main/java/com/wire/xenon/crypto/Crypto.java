@@ -2,14 +2,18 @@ package com.wire.xenon.crypto;
 
 import com.wire.bots.cryptobox.CryptoException;
 import com.wire.xenon.backend.models.QualifiedId;
+import com.wire.xenon.models.otr.DeviceSet;
 import com.wire.xenon.models.otr.Missing;
 import com.wire.xenon.models.otr.PreKey;
 import com.wire.xenon.models.otr.PreKeys;
+import com.wire.xenon.models.otr.RawRecipients;
 import com.wire.xenon.models.otr.Recipients;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
 
 public interface Crypto extends Closeable {
     byte[] getIdentity() throws CryptoException;
@@ -31,6 +35,29 @@ public interface Crypto extends Closeable {
      */
     Recipients encrypt(Missing missing, byte[] content) throws CryptoException;
 
+    /**
+     * Same as {@link #encrypt(PreKeys, byte[])} but the ciphers are not Base64 encoded.
+     * The default implementation decodes the result of {@link #encrypt(PreKeys, byte[])}.
+     */
+    default RawRecipients encryptRaw(PreKeys preKeys, byte[] content) throws CryptoException {
+        return RawRecipients.of(encrypt(preKeys, content));
+    }
+
+    /**
+     * Same as {@link #encrypt(Missing, byte[])} but the ciphers are not Base64 encoded.
+     * The default implementation decodes the result of {@link #encrypt(Missing, byte[])}.
+     */
+    default RawRecipients encryptRaw(Missing missing, byte[] content) throws CryptoException {
+        return RawRecipients.of(encrypt(missing, content));
+    }
+
+    /**
+     * Same as {@link #encryptRaw(Missing, byte[])} for the compact device set
+     */
+    default RawRecipients encryptRaw(DeviceSet devices, byte[] content) throws CryptoException {
+        return encryptRaw(devices.toMissing(), content);
+    }
+
     /**
      * Decrypt cipher either using existing session or it creates new session from this cipher and decrypts
      *
@@ -42,6 +69,46 @@ public interface Crypto extends Closeable {
      */
     String decrypt(QualifiedId userId, String clientId, String cypher) throws CryptoException;
 
+    /**
+     * Same as {@link #decrypt(QualifiedId, String, String)} but without Base64: the plain text can be parsed as
+     * is, for example with {@code GenericMessage.parseFrom}.
+     * The default implementation encodes and decodes around {@link #decrypt(QualifiedId, String, String)}.
+     *
+     * @param userId   Sender's User id
+     * @param clientId Sender's Client id
+     * @param cypher   Encrypted bytes
+     * @return Decrypted bytes
+     * @throws CryptoException throws CryptoException
+     */
+    default byte[] decrypt(QualifiedId userId, String clientId, byte[] cypher) throws CryptoException {
+        String decrypted = decrypt(userId, clientId, Base64.getEncoder().encodeToString(cypher));
+        return decrypted == null ? null : Base64.getDecoder().decode(decrypted);
+    }
+
+    /**
+     * Decrypt many ciphers at once, for example the events queued while the bot was offline. Ciphers of the same
+     * session are decrypted in the given order, different sessions may be decrypted in parallel.
+     *
+     * The default implementation decrypts the ciphers one by one.
+     *
+     * @param ciphers Ciphers in the order they were received
+     * @return One result per cipher, in the same order. A cipher that failed to decrypt carries its error
+     * @throws CryptoException if the updated sessions could not be stored, none of the results can be used then
+     */
+    default List<DecryptResult> decryptBatch(List<Cipher> ciphers) throws CryptoException {
+        List<DecryptResult> ret = new ArrayList<>(ciphers.size());
+        for (Cipher cipher : ciphers) {
+            try {
+                ret.add(DecryptResult.ok(cipher, decrypt(cipher.userId, cipher.clientId, Base64.getDecoder().decode(cipher.cypher))));
+            } catch (CryptoException e) {
+                ret.add(DecryptResult.failed(cipher, e));
+            } catch (IllegalArgumentException e) {
+                ret.add(DecryptResult.failed(cipher, new CryptoException(e)));
+            }
+        }
+        return ret;
+    }
+
     boolean isClosed();
 
     void purge() throws IOException;
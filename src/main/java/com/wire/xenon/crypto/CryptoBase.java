@@ -21,20 +21,43 @@ package com.wire.xenon.crypto;
 import com.wire.bots.cryptobox.CryptoException;
 import com.wire.bots.cryptobox.ICryptobox;
 import com.wire.xenon.backend.models.QualifiedId;
+import com.wire.xenon.models.otr.DeviceSet;
 import com.wire.xenon.models.otr.Missing;
 import com.wire.xenon.models.otr.PreKey;
 import com.wire.xenon.models.otr.PreKeys;
+import com.wire.xenon.models.otr.RawRecipients;
 import com.wire.xenon.models.otr.Recipients;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 /**
  * Wrapper for the Crypto Box. This class is thread safe.
  */
 abstract class CryptoBase implements Crypto {
+    private static final int LOCK_STRIPES = 64;
+
+    // Sessions are locked one by one so that the fan-out can run on many threads without
+    // two threads ever working on the same session at the same time
+    private final Object[] sessionLocks = new Object[LOCK_STRIPES];
+
+    private volatile Executor encryptionExecutor;
+    private volatile int parallelThreshold;
+
+    CryptoBase() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            sessionLocks[i] = new Object();
+        }
+    }
 
     private static com.wire.bots.cryptobox.PreKey toPreKey(PreKey preKey) {
         return new com.wire.bots.cryptobox.PreKey(preKey.id, Base64.getDecoder().decode(preKey.key));
@@ -59,13 +82,35 @@ abstract class CryptoBase implements Crypto {
      * @param clientId a string identifying one client
      * @return a String identifying the file/row location of the crypto session
      */
-    private static String createId(QualifiedId userId, String clientId) {
+    static String createId(QualifiedId userId, String clientId) {
         String sid = userId.domain != null ? userId.toString() : userId.id.toString();
-        return String.format("%s_%s", sid, clientId);
+        return sid + "_" + clientId;
     }
 
     public abstract ICryptobox box();
 
+    /**
+     * Enables parallel encryption of the message fan-out. Recipients are split per user and encrypted on
+     * the given executor (a ForkJoinPool or a virtual thread executor, for example) and then merged into one
+     * {@link RawRecipients}. Every session is still encrypted exactly once, so the ciphers are the same as the
+     * ones produced by the serial path.
+     *
+     * @param executor  Executor to encrypt on. Null disables the parallel encryption
+     * @param threshold Minimal number of devices in the recipient set for the parallel path to be taken
+     */
+    public void setEncryptionExecutor(Executor executor, int threshold) {
+        this.encryptionExecutor = executor;
+        this.parallelThreshold = threshold;
+    }
+
+    /**
+     * @return Executor that runs the tasks of a fan-out started by the calling thread. Overridden to carry the
+     * context of the calling thread over to the tasks
+     */
+    protected Executor fanOut(Executor executor) {
+        return executor;
+    }
+
     @Override
     public byte[] getIdentity() throws CryptoException {
         return box().getIdentity();
@@ -116,24 +161,7 @@ abstract class CryptoBase implements Crypto {
      */
     @Override
     public Recipients encrypt(PreKeys preKeys, byte[] content) throws CryptoException {
-        Recipients recipients = new Recipients();
-        for (String domain : preKeys.qualifiedUserClientPrekeys.keySet()) {
-            Map<UUID, Map<String, PreKey>> users = preKeys.qualifiedUserClientPrekeys.get(domain);
-            for (UUID user : users.keySet()) {
-                Map<String, PreKey> clients = users.get(user);
-                for (String clientId : clients.keySet()) {
-                    PreKey pk = clients.get(clientId);
-                    if (pk != null && pk.key != null) {
-                        QualifiedId qualifiedUserId = new QualifiedId(user, domain);
-                        String id = createId(qualifiedUserId, clientId);
-                        byte[] cipher = box().encryptFromPreKeys(id, toPreKey(pk), content);
-                        String s = Base64.getEncoder().encodeToString(cipher);
-                        recipients.add(qualifiedUserId, clientId, s);
-                    }
-                }
-            }
-        }
-        return recipients;
+        return encryptRaw(preKeys, content).toRecipients();
     }
 
     /**
@@ -145,18 +173,60 @@ abstract class CryptoBase implements Crypto {
      */
     @Override
     public Recipients encrypt(Missing missing, byte[] content) throws CryptoException {
-        Recipients recipients = new Recipients();
-        for (QualifiedId userId : missing.toUserIds()) {
-            for (String clientId : missing.toClients(userId)) {
-                String id = createId(userId, clientId);
-                byte[] cipher = box().encryptFromSession(id, content);
-                if (cipher != null) {
-                    String s = Base64.getEncoder().encodeToString(cipher);
-                    recipients.add(userId, clientId, s);
+        return encryptRaw(missing, content).toRecipients();
+    }
+
+    @Override
+    public RawRecipients encryptRaw(PreKeys preKeys, byte[] content) throws CryptoException {
+        Executor executor = encryptionExecutor;
+        if (executor == null || preKeys.count() < parallelThreshold) {
+            RawRecipients recipients = new RawRecipients();
+            for (String domain : preKeys.qualifiedUserClientPrekeys.keySet()) {
+                Map<UUID, Map<String, PreKey>> users = preKeys.qualifiedUserClientPrekeys.get(domain);
+                for (UUID user : users.keySet()) {
+                    encryptFromPreKeys(QualifiedId.of(user, domain), users.get(user), content, recipients);
                 }
             }
+            return recipients;
         }
-        return recipients;
+
+        Executor tasks = fanOut(executor);
+        List<CompletableFuture<RawRecipients>> futures = new ArrayList<>();
+        for (String domain : preKeys.qualifiedUserClientPrekeys.keySet()) {
+            Map<UUID, Map<String, PreKey>> users = preKeys.qualifiedUserClientPrekeys.get(domain);
+            for (UUID user : users.keySet()) {
+                QualifiedId userId = QualifiedId.of(user, domain);
+                Map<String, PreKey> clients = users.get(user);
+                futures.add(submit(tasks, recipients -> encryptFromPreKeys(userId, clients, content, recipients)));
+            }
+        }
+        return join(futures);
+    }
+
+    @Override
+    public RawRecipients encryptRaw(Missing missing, byte[] content) throws CryptoException {
+        return encryptRaw(DeviceSet.of(missing), content);
+    }
+
+    @Override
+    public RawRecipients encryptRaw(DeviceSet devices, byte[] content) throws CryptoException {
+        Executor executor = encryptionExecutor;
+        if (executor == null || devices.size() < parallelThreshold) {
+            RawRecipients recipients = new RawRecipients();
+            for (int i = 0; i < devices.userCount(); i++) {
+                encryptFromSessions(devices.user(i), devices.clients(i), content, recipients);
+            }
+            return recipients;
+        }
+
+        Executor tasks = fanOut(executor);
+        List<CompletableFuture<RawRecipients>> futures = new ArrayList<>();
+        for (int i = 0; i < devices.userCount(); i++) {
+            QualifiedId userId = devices.user(i);
+            List<String> clients = devices.clients(i);
+            futures.add(submit(tasks, recipients -> encryptFromSessions(userId, clients, content, recipients)));
+        }
+        return join(futures);
     }
 
     /**
@@ -171,11 +241,127 @@ abstract class CryptoBase implements Crypto {
     @Override
     public String decrypt(QualifiedId userId, String clientId, String cypher) throws CryptoException {
         byte[] decode = Base64.getDecoder().decode(cypher);
+        return Base64.getEncoder().encodeToString(decrypt(userId, clientId, decode));
+    }
+
+    @Override
+    public byte[] decrypt(QualifiedId userId, String clientId, byte[] cypher) throws CryptoException {
         String id = createId(userId, clientId);
 
         ICryptobox cryptobox = box();
-        byte[] decrypt = cryptobox.decrypt(id, decode);
-        return Base64.getEncoder().encodeToString(decrypt);
+        synchronized (lock(id)) {
+            return cryptobox.decrypt(id, cypher);
+        }
+    }
+
+    /**
+     * Ciphers are grouped by session. Each session is locked once for all its ciphers, which are decrypted in
+     * order. With an encryption executor the sessions are decrypted in parallel
+     */
+    @Override
+    public List<DecryptResult> decryptBatch(List<Cipher> ciphers) throws CryptoException {
+        LinkedHashMap<String, List<Integer>> sessions = new LinkedHashMap<>();
+        for (int i = 0; i < ciphers.size(); i++) {
+            Cipher cipher = ciphers.get(i);
+            sessions.computeIfAbsent(createId(cipher.userId, cipher.clientId), k -> new ArrayList<>()).add(i);
+        }
+
+        DecryptResult[] results = new DecryptResult[ciphers.size()];
+        Executor executor = encryptionExecutor;
+        if (executor == null || sessions.size() < 2 || ciphers.size() < parallelThreshold) {
+            sessions.forEach((id, indexes) -> decryptSession(id, indexes, ciphers, results));
+        } else {
+            Executor tasks = fanOut(executor);
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            sessions.forEach((id, indexes) -> futures.add(CompletableFuture.runAsync(
+                    () -> decryptSession(id, indexes, ciphers, results), tasks)));
+            try {
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+            } catch (CompletionException e) {
+                throw new CryptoException(e.getCause());
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    private void decryptSession(String id, List<Integer> indexes, List<Cipher> ciphers, DecryptResult[] results) {
+        ICryptobox cryptobox = box();
+        synchronized (lock(id)) {
+            for (int i : indexes) {
+                Cipher cipher = ciphers.get(i);
+                try {
+                    results[i] = DecryptResult.ok(cipher, cryptobox.decrypt(id, Base64.getDecoder().decode(cipher.cypher)));
+                } catch (CryptoException e) {
+                    results[i] = DecryptResult.failed(cipher, e);
+                } catch (IllegalArgumentException e) {
+                    results[i] = DecryptResult.failed(cipher, new CryptoException(e));
+                }
+            }
+        }
+    }
+
+    private void encryptFromPreKeys(QualifiedId userId, Map<String, PreKey> clients, byte[] content, RawRecipients recipients)
+            throws CryptoException {
+        for (String clientId : clients.keySet()) {
+            PreKey pk = clients.get(clientId);
+            if (pk != null && pk.key != null) {
+                String id = createId(userId, clientId);
+                byte[] cipher;
+                synchronized (lock(id)) {
+                    cipher = box().encryptFromPreKeys(id, toPreKey(pk), content);
+                }
+                recipients.add(userId, clientId, cipher);
+            }
+        }
+    }
+
+    private void encryptFromSessions(QualifiedId userId, Collection<String> clients, byte[] content, RawRecipients recipients)
+            throws CryptoException {
+        for (String clientId : clients) {
+            String id = createId(userId, clientId);
+            byte[] cipher;
+            synchronized (lock(id)) {
+                cipher = box().encryptFromSession(id, content);
+            }
+            if (cipher != null) {
+                recipients.add(userId, clientId, cipher);
+            }
+        }
+    }
+
+    private Object lock(String sessionId) {
+        return sessionLocks[Math.floorMod(sessionId.hashCode(), LOCK_STRIPES)];
+    }
+
+    private static CompletableFuture<RawRecipients> submit(Executor executor, EncryptTask task) {
+        return CompletableFuture.supplyAsync(() -> {
+            RawRecipients recipients = new RawRecipients();
+            try {
+                task.encrypt(recipients);
+            } catch (CryptoException e) {
+                throw new CompletionException(e);
+            }
+            return recipients;
+        }, executor);
+    }
+
+    private static RawRecipients join(List<CompletableFuture<RawRecipients>> futures) throws CryptoException {
+        RawRecipients ret = new RawRecipients();
+        for (CompletableFuture<RawRecipients> future : futures) {
+            try {
+                ret.add(future.join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof CryptoException) {
+                    throw (CryptoException) e.getCause();
+                }
+                throw new CryptoException(e.getCause());
+            }
+        }
+        return ret;
+    }
+
+    private interface EncryptTask {
+        void encrypt(RawRecipients recipients) throws CryptoException;
     }
 
     /**
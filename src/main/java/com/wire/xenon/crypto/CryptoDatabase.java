@@ -23,14 +23,34 @@ import com.wire.bots.cryptobox.CryptoException;
 import com.wire.bots.cryptobox.ICryptobox;
 import com.wire.bots.cryptobox.IStorage;
 import com.wire.xenon.backend.models.QualifiedId;
+import com.wire.xenon.crypto.storage.JdbiStorage;
+import com.wire.xenon.crypto.storage.SessionBatch;
+import com.wire.xenon.models.otr.DeviceSet;
+import com.wire.xenon.models.otr.PreKey;
+import com.wire.xenon.models.otr.PreKeys;
+import com.wire.xenon.models.otr.RawRecipients;
+import com.wire.xenon.tools.UnitOfWork;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * Wrapper for the Crypto Box. This class is thread safe.
+ *
+ * <p>
+ *     With a {@link JdbiStorage} the sessions updated by one encryption (and the generated prekeys) are written in one batch
+ *     ({@link SessionBatch}). They are committed before encrypt returns: the returned ciphers can be sent, and if the
+ *     commit fails CryptoException is thrown instead. The sessions of all the recipients are loaded in one query
+ *     before the fan-out, so the fan-out threads never read the database.
+ * </p>
  */
 public class CryptoDatabase extends CryptoBase {
     private final CryptoDb box;
+    private final IStorage storage;
+    private final String id;
 
     /**
      * <p>
@@ -44,6 +64,8 @@ public class CryptoDatabase extends CryptoBase {
      * @param storage Instance of a IStorage class
      */
     public CryptoDatabase(QualifiedId userId, IStorage storage) throws CryptoException {
+        this.storage = storage;
+        this.id = userId.toString();
         try {
             box = new CryptoDb(userId.toString(), storage);
         } catch (IOException e) {
@@ -52,6 +74,8 @@ public class CryptoDatabase extends CryptoBase {
     }
 
     public CryptoDatabase(QualifiedId userId, IStorage storage, String dir) throws CryptoException {
+        this.storage = storage;
+        this.id = userId.toString();
         try {
             box = new CryptoDb(userId.toString(), storage, dir);
         } catch (IOException e) {
@@ -64,6 +88,111 @@ public class CryptoDatabase extends CryptoBase {
         return box;
     }
 
+    @Override
+    public RawRecipients encryptRaw(PreKeys preKeys, byte[] content) throws CryptoException {
+        return inBatch(sessionIds(preKeys), () -> super.encryptRaw(preKeys, content));
+    }
+
+    @Override
+    public RawRecipients encryptRaw(DeviceSet devices, byte[] content) throws CryptoException {
+        return inBatch(sessionIds(devices), () -> super.encryptRaw(devices, content));
+    }
+
+    /**
+     * The sessions of all the senders are loaded in one query and the updated sessions are written in one batch
+     */
+    @Override
+    public List<DecryptResult> decryptBatch(List<Cipher> ciphers) throws CryptoException {
+        return inBatch(sessionIds(ciphers), () -> super.decryptBatch(ciphers));
+    }
+
+    /**
+     * Prekeys are generated by the native box one by one, they are inserted in one batch
+     */
+    @Override
+    public ArrayList<PreKey> newPreKeys(int from, int count) throws CryptoException {
+        return inBatch(Collections.emptyList(), () -> super.newPreKeys(from, count));
+    }
+
+    /**
+     * The tasks of the fan-out write into the batch of the call that started them. Inside of a unit of work they run
+     * on the calling thread, on the connection of the unit of work: on other threads they would wait for the row
+     * locks the unit of work holds while it waits for them
+     */
+    @Override
+    protected Executor fanOut(Executor executor) {
+        if (!(storage instanceof JdbiStorage))
+            return executor;
+        if (UnitOfWork.isOpen())
+            return Runnable::run;
+
+        JdbiStorage jdbiStorage = (JdbiStorage) storage;
+        SessionBatch batch = jdbiStorage.currentBatch();
+        if (batch == null)
+            return executor;
+        return task -> executor.execute(() -> jdbiStorage.runInBatch(batch, task));
+    }
+
+    /**
+     * Runs the work in a batch of the box after loading the given sessions. Other storages than {@link JdbiStorage}
+     * run the work as is
+     */
+    private <T> T inBatch(List<String> sids, Work<T> work) throws CryptoException {
+        if (!(storage instanceof JdbiStorage))
+            return work.run();
+
+        JdbiStorage jdbiStorage = (JdbiStorage) storage;
+        try (SessionBatch batch = jdbiStorage.beginBatch(id)) {
+            if (!sids.isEmpty())
+                jdbiStorage.prefetch(id, sids);
+            T ret = work.run();
+            commit(batch);
+            return ret;
+        }
+    }
+
+    private static List<String> sessionIds(DeviceSet devices) {
+        List<String> ret = new ArrayList<>(devices.size());
+        for (int i = 0; i < devices.userCount(); i++) {
+            QualifiedId userId = devices.user(i);
+            for (String clientId : devices.clients(i)) {
+                ret.add(createId(userId, clientId));
+            }
+        }
+        return ret;
+    }
+
+    private static List<String> sessionIds(List<Cipher> ciphers) {
+        List<String> ret = new ArrayList<>(ciphers.size());
+        for (Cipher cipher : ciphers) {
+            ret.add(createId(cipher.userId, cipher.clientId));
+        }
+        return ret;
+    }
+
+    private static List<String> sessionIds(PreKeys preKeys) {
+        List<String> ret = new ArrayList<>();
+        preKeys.qualifiedUserClientPrekeys.forEach((domain, users) -> users.forEach((user, clients) -> {
+            QualifiedId userId = QualifiedId.of(user, domain);
+            for (String clientId : clients.keySet()) {
+                ret.add(createId(userId, clientId));
+            }
+        }));
+        return ret;
+    }
+
+    private static void commit(SessionBatch batch) throws CryptoException {
+        try {
+            batch.commit();
+        } catch (RuntimeException e) {
+            throw new CryptoException(e);
+        }
+    }
+
+    private interface Work<T> {
+        T run() throws CryptoException;
+    }
+
     @Override
     public void purge() throws IOException {
         box.purge();
@@ -0,0 +1,40 @@
+package com.wire.xenon.crypto;
+
+import com.wire.bots.cryptobox.CryptoException;
+
+/**
+ * Outcome of decrypting one {@link Cipher} of a batch: either the content or the error
+ */
+public class DecryptResult {
+    public final Cipher cipher;
+    public final byte[] content;
+    public final CryptoException error;
+
+    private DecryptResult(Cipher cipher, byte[] content, CryptoException error) {
+        this.cipher = cipher;
+        this.content = content;
+        this.error = error;
+    }
+
+    public static DecryptResult ok(Cipher cipher, byte[] content) {
+        return new DecryptResult(cipher, content, null);
+    }
+
+    public static DecryptResult failed(Cipher cipher, CryptoException error) {
+        return new DecryptResult(cipher, null, error);
+    }
+
+    public boolean isOk() {
+        return error == null;
+    }
+
+    /**
+     * @return Decrypted bytes
+     * @throws CryptoException the error this cipher failed with
+     */
+    public byte[] get() throws CryptoException {
+        if (error != null)
+            throw error;
+        return content;
+    }
+}
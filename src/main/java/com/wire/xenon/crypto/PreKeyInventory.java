@@ -0,0 +1,172 @@
+package com.wire.xenon.crypto;
+
+import com.wire.xenon.WireClient;
+import org.jdbi.v3.core.Jdbi;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps count of the prekeys each bot has on the Backend, so that topping them up does not need to list them first.
+ *
+ * <p>
+ *     The expected count goes down by one prekey per user that joined a conversation of the bot and up with every
+ *     upload. Only every {@code reconcileInterval} it is corrected with the list of the Backend, which is also
+ *     when the consumption rate is measured. Top-ups are sized to last two reconcile intervals at the observed rate.
+ *     The id of the next prekey is persisted per bot and wraps around after 0xFFFE, the last resort prekey 0xFFFF is
+ *     never handed out. Ids are reserved with one atomic update of the bot's row, so the nodes sharing the database
+ *     never hand out the same id. The inventory is the {@link PreKeyPool.Allocator} of the {@link PreKeyPool}.
+ * </p>
+ */
+public class PreKeyInventory implements PreKeyPool.Allocator {
+    private static final int LAST_RESORT = 0xFFFF;
+    private static final double HOUR = Duration.ofHours(1).toMillis();
+
+    private final PreKeyInventoryDAO inventoryDAO;
+    private final long reconcileInterval;
+    private final int maxTopUp;
+    private final ConcurrentHashMap<UUID, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * @param jdbi              Database the inventory is persisted in
+     * @param reconcileInterval How often the count is checked against the Backend
+     * @param maxTopUp          Maximal number of prekeys uploaded at once
+     */
+    public PreKeyInventory(Jdbi jdbi, Duration reconcileInterval, int maxTopUp) {
+        this.inventoryDAO = jdbi.onDemand(PreKeyInventoryDAO.class);
+        this.reconcileInterval = reconcileInterval.toMillis();
+        this.maxTopUp = maxTopUp;
+    }
+
+    /**
+     * Records the users that joined and checks the expected count
+     *
+     * @param client       Bot
+     * @param joined       Number of users that joined, each is expected to claim a prekey
+     * @param minAvailable Number of prekeys the bot should have at least
+     * @return Number of prekeys to upload, 0 if the bot has enough
+     */
+    public int shortfall(WireClient client, int joined, int minAvailable) {
+        Entry entry = entry(client.getId());
+        synchronized (entry) {
+            PreKeyStock stock = entry.stock;
+            long now = System.currentTimeMillis();
+            if (stock == null || now - stock.reconciled >= reconcileInterval) {
+                reconcile(client, entry, now);
+                stock = entry.stock;
+            } else {
+                stock.available = Math.max(0, stock.available - joined);
+                entry.claimed += joined;
+            }
+
+            if (stock.available >= minAvailable)
+                return 0;
+            int target = Math.max(minAvailable, (int) Math.ceil(2 * stock.rate * reconcileInterval / HOUR));
+            return Math.min(target - stock.available, maxTopUp);
+        }
+    }
+
+    /**
+     * Records prekeys uploaded to the Backend
+     */
+    public void uploaded(UUID botId, int count) {
+        Entry entry = entry(botId);
+        synchronized (entry) {
+            PreKeyStock stock = tracked(botId, entry);
+            stock.available += count;
+            save(stock);
+        }
+    }
+
+    @Override
+    public int reserve(UUID botId, int count) {
+        Integer next = inventoryDAO.reserve(botId, count);
+        if (next == null)
+            throw new IllegalStateException("Prekeys of bot " + botId + " are not tracked yet");
+        return Math.floorMod(next - count, LAST_RESORT);
+    }
+
+    /**
+     * Drops the inventory of the bot, for example when the bot was removed
+     */
+    public void remove(UUID botId) {
+        entries.remove(botId);
+        inventoryDAO.delete(botId);
+    }
+
+    /**
+     * @return Id following the longest run of ids. The run may wrap around after 0xFFFE
+     */
+    static int nextId(List<Integer> ids) {
+        if (ids.isEmpty())
+            return 0;
+        ArrayList<Integer> sorted = new ArrayList<>(ids);
+        Collections.sort(sorted);
+
+        int last = sorted.get(sorted.size() - 1);
+        int ret = last + 1;
+        int gap = sorted.get(0) + LAST_RESORT - last;
+        for (int i = 0; i + 1 < sorted.size(); i++) {
+            int next = sorted.get(i + 1) - sorted.get(i);
+            if (next > gap) {
+                gap = next;
+                ret = sorted.get(i) + 1;
+            }
+        }
+        return ret % LAST_RESORT;
+    }
+
+    private void reconcile(WireClient client, Entry entry, long now) {
+        ArrayList<Integer> ids = new ArrayList<>(client.getAvailablePrekeys());
+        ids.remove(Integer.valueOf(LAST_RESORT));
+
+        PreKeyStock stock = entry.stock;
+        if (stock == null) {
+            stock = new PreKeyStock();
+            stock.botId = client.getId();
+            stock.nextId = nextId(ids);
+        } else if (stock.reconciled > 0 && now > stock.reconciled) {
+            // prekeys the Backend handed out, not the ones we guessed
+            int consumed = Math.max(0, stock.available + entry.claimed - ids.size());
+            double observed = consumed * HOUR / (now - stock.reconciled);
+            stock.rate = stock.rate > 0 ? (stock.rate + observed) / 2 : observed;
+        }
+        stock.available = ids.size();
+        stock.reconciled = now;
+        entry.stock = stock;
+        entry.claimed = 0;
+        save(stock);
+    }
+
+    private PreKeyStock tracked(UUID botId, Entry entry) {
+        if (entry.stock == null)
+            throw new IllegalStateException("Prekeys of bot " + botId + " are not tracked yet");
+        return entry.stock;
+    }
+
+    private Entry entry(UUID botId) {
+        Entry entry = entries.computeIfAbsent(botId, k -> new Entry());
+        synchronized (entry) {
+            if (!entry.loaded) {
+                entry.stock = inventoryDAO.get(botId);
+                entry.loaded = true;
+            }
+        }
+        return entry;
+    }
+
+    private void save(PreKeyStock stock) {
+        inventoryDAO.insert(stock.botId, stock.nextId, stock.available, stock.rate, stock.reconciled);
+    }
+
+    private static final class Entry {
+        PreKeyStock stock;
+        // prekeys expected to be claimed since the last reconcile
+        int claimed;
+        boolean loaded;
+    }
+}
@@ -0,0 +1,53 @@
+package com.wire.xenon.crypto;
+
+import org.jdbi.v3.core.mapper.ColumnMapper;
+import org.jdbi.v3.core.statement.StatementContext;
+import org.jdbi.v3.sqlobject.config.RegisterColumnMapper;
+import org.jdbi.v3.sqlobject.customizer.Bind;
+import org.jdbi.v3.sqlobject.statement.SqlQuery;
+import org.jdbi.v3.sqlobject.statement.SqlUpdate;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.UUID;
+
+public interface PreKeyInventoryDAO {
+    @SqlUpdate("INSERT INTO PrekeysInventory (botId, nextId, available, rate, reconciled) " +
+            "VALUES (:botId, :nextId, :available, :rate, :reconciled) " +
+            "ON CONFLICT (botId) DO UPDATE SET available = EXCLUDED.available, " +
+            "rate = EXCLUDED.rate, reconciled = EXCLUDED.reconciled")
+    int insert(@Bind("botId") UUID botId,
+               @Bind("nextId") int nextId,
+               @Bind("available") int available,
+               @Bind("rate") double rate,
+               @Bind("reconciled") long reconciled);
+
+    /**
+     * Moves nextId forward by count in one statement, so concurrent reservations get disjoint ranges
+     *
+     * @return The new nextId or null if the bot is not in the inventory
+     */
+    @SqlQuery("UPDATE PrekeysInventory SET nextId = (nextId + :count) % 65535 WHERE botId = :botId RETURNING nextId")
+    Integer reserve(@Bind("botId") UUID botId,
+                    @Bind("count") int count);
+
+    @SqlQuery("SELECT * FROM PrekeysInventory WHERE botId = :botId")
+    @RegisterColumnMapper(_Mapper.class)
+    PreKeyStock get(@Bind("botId") UUID botId);
+
+    @SqlUpdate("DELETE FROM PrekeysInventory WHERE botId = :botId")
+    int delete(@Bind("botId") UUID botId);
+
+    class _Mapper implements ColumnMapper<PreKeyStock> {
+        @Override
+        public PreKeyStock map(ResultSet r, int columnNumber, StatementContext ctx) throws SQLException {
+            PreKeyStock stock = new PreKeyStock();
+            stock.botId = (UUID) r.getObject("botId");
+            stock.nextId = r.getInt("nextId");
+            stock.available = r.getInt("available");
+            stock.rate = r.getDouble("rate");
+            stock.reconciled = r.getLong("reconciled");
+            return stock;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.wire.xenon.crypto;
+
+import com.wire.bots.cryptobox.CryptoException;
+import com.wire.xenon.factories.PooledCryptoFactory;
+import com.wire.xenon.models.otr.PreKey;
+import com.wire.xenon.tools.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps a buffer of generated, not yet uploaded prekeys per bot so that topping up the prekeys on the Backend does
+ * not have to wait for the key generation.
+ *
+ * <p>
+ *     {@link #take} serves the keys from the buffer and only generates the shortfall itself. When the buffer falls
+ *     below {@code lowWatermark} it is refilled up to {@code highWatermark} on the executor, through a lease on
+ *     the bot's box from the {@link PooledCryptoFactory}. The native box keeps its prekeys in memory from the time
+ *     it was opened, so the keys must be generated by the box that will decrypt with them: the events must lease
+ *     their boxes from the same pool, a second box opened for the refill would be unaware of the keys (and two open
+ *     boxes of one bot are not supported). Ids come from the {@link Allocator}, see {@link PreKeyInventory}: the
+ *     buffered keys are not on the Backend yet, so the ids can't be derived from the ones the Backend lists, and
+ *     ids counted in memory would overlap between nodes and after a restart.
+ * </p>
+ */
+public class PreKeyPool {
+    private final PooledCryptoFactory factory;
+    private final Executor executor;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final Allocator allocator;
+    private final ConcurrentHashMap<UUID, Buffer> buffers = new ConcurrentHashMap<>();
+
+    /**
+     * @param factory       Pool the events lease the boxes from, leases the box of the bot for the refill
+     * @param executor      Executor the refill runs on
+     * @param lowWatermark  Buffer is refilled when it holds fewer keys
+     * @param highWatermark Number of keys the buffer is refilled to
+     * @param allocator     Allocates the prekey ids, shared by all the nodes
+     */
+    public PreKeyPool(PooledCryptoFactory factory, Executor executor, int lowWatermark, int highWatermark,
+                      Allocator allocator) {
+        this.factory = factory;
+        this.executor = executor;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.allocator = Objects.requireNonNull(allocator, "PreKeyPool needs an allocator");
+    }
+
+    /**
+     * @param botId     Bot
+     * @param count     Number of prekeys needed
+     * @param generator Generates the keys the buffer is short of, the box of the current event leased from the pool
+     * @return Prekeys ready to be uploaded
+     */
+    public ArrayList<PreKey> take(UUID botId, int count, Generator generator) throws CryptoException {
+        Buffer buffer = buffers.computeIfAbsent(botId, k -> new Buffer());
+        ArrayList<PreKey> ret = new ArrayList<>(count);
+        int start;
+        int missing;
+        synchronized (buffer) {
+            while (ret.size() < count && !buffer.keys.isEmpty()) {
+                ret.add(buffer.keys.poll());
+            }
+            missing = count - ret.size();
+            start = missing > 0 ? allocator.reserve(botId, missing) : 0;
+        }
+
+        if (missing > 0)
+            ret.addAll(generator.newPreKeys(start, missing));
+
+        refill(botId, buffer);
+        return ret;
+    }
+
+    /**
+     * @return Number of buffered prekeys of the bot
+     */
+    public int size(UUID botId) {
+        Buffer buffer = buffers.get(botId);
+        if (buffer == null)
+            return 0;
+        synchronized (buffer) {
+            return buffer.keys.size();
+        }
+    }
+
+    /**
+     * Drops the buffer of the bot, for example when the bot was removed
+     */
+    public void remove(UUID botId) {
+        buffers.remove(botId);
+    }
+
+    private void refill(UUID botId, Buffer buffer) {
+        int start;
+        int count;
+        synchronized (buffer) {
+            if (buffer.refilling || buffer.keys.size() >= lowWatermark)
+                return;
+            buffer.refilling = true;
+            count = highWatermark - buffer.keys.size();
+            try {
+                start = allocator.reserve(botId, count);
+            } catch (RuntimeException e) {
+                buffer.refilling = false;
+                Logger.exception(e, "PreKeyPool: refill failed, bot: %s", botId);
+                return;
+            }
+        }
+
+        executor.execute(() -> {
+            ArrayList<PreKey> keys = null;
+            try (Crypto crypto = factory.create(botId)) {
+                keys = crypto.newPreKeys(start, count);
+            } catch (Exception e) {
+                Logger.exception(e, "PreKeyPool: refill failed, bot: %s", botId);
+            } finally {
+                synchronized (buffer) {
+                    if (keys != null)
+                        buffer.keys.addAll(keys);
+                    buffer.refilling = false;
+                }
+            }
+        });
+    }
+
+    public interface Generator {
+        ArrayList<PreKey> newPreKeys(int from, int count) throws CryptoException;
+    }
+
+    public interface Allocator {
+        /**
+         * @return First id of a range of {@code count} ids that were not handed out before
+         */
+        int reserve(UUID botId, int count);
+    }
+
+    private static final class Buffer {
+        final ArrayDeque<PreKey> keys = new ArrayDeque<>();
+        boolean refilling;
+    }
+}
@@ -0,0 +1,18 @@
+package com.wire.xenon.crypto;
+
+import java.util.UUID;
+
+/**
+ * Prekeys of a bot as tracked by the {@link PreKeyInventory}
+ */
+public class PreKeyStock {
+    public UUID botId;
+    // Id of the next generated prekey when the bot was first tracked, then advanced by the database only
+    public int nextId;
+    // Expected number of prekeys on the Backend
+    public int available;
+    // Observed consumption in prekeys per hour
+    public double rate;
+    // Last time the count was checked against the Backend
+    public long reconciled;
+}
@@ -0,0 +1,47 @@
+package com.wire.xenon.crypto.storage;
+
+/**
+ * Cache of the session blobs in front of the Sessions table, keyed by crypto box id and session id. Absent sessions
+ * are cached as well.
+ *
+ * <p>
+ *     The cached blob is only valid as long as this process is the only writer of the sessions of the box,
+ *     sessions updated by another node are not seen until the entry expires.
+ * </p>
+ */
+public interface ISessionCache {
+    /**
+     * @return Cached entry or null on a miss. The data of the entry is null when the session does not exist
+     */
+    Entry get(String id, String sid);
+
+    /**
+     * @return True if the session (or its absence) is cached and not expired. Does not count as a hit or a miss
+     */
+    boolean contains(String id, String sid);
+
+    void put(String id, String sid, byte[] data);
+
+    void remove(String id, String sid);
+
+    /**
+     * Removes all the sessions of the crypto box
+     */
+    void remove(String id);
+
+    int size();
+
+    long getHits();
+
+    long getMisses();
+
+    class Entry {
+        public final byte[] data;
+        final long expires;
+
+        Entry(byte[] data, long expires) {
+            this.data = data;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.wire.xenon.crypto.storage;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the identity keys of the crypto boxes, keyed by box id. Shared by the {@link JdbiStorage}s it is given to.
+ *
+ * <p>
+ *     The identity of a box never changes once it was created, only purge removes it. Opening a box again then
+ *     costs no database round trip for the identity. The identity holds the private key of the box, so the cache is
+ *     opt-in and the entries expire: keep it scoped to the storages that serve the bots of this process.
+ * </p>
+ */
+public class IdentityCache {
+    private final LinkedHashMap<String, Entry> identities;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final long ttl;
+
+    /**
+     * @param maxSize Maximal number of cached identities
+     * @param ttl     How long an identity is kept after it was loaded
+     */
+    public IdentityCache(int maxSize, Duration ttl) {
+        this.ttl = ttl.toMillis();
+        this.identities = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return Identity or null on a miss (a cold open that goes to the database)
+     */
+    public synchronized byte[] get(String id) {
+        Entry entry = identities.get(id);
+        if (entry == null || entry.expires < System.currentTimeMillis()) {
+            if (entry != null)
+                identities.remove(id);
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.identity;
+    }
+
+    public synchronized void put(String id, byte[] identity) {
+        identities.put(id, new Entry(identity, System.currentTimeMillis() + ttl));
+    }
+
+    public synchronized void remove(String id) {
+        identities.remove(id);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Number of box opens that had to load the identity from the database
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int size() {
+        return identities.size();
+    }
+
+    private static final class Entry {
+        final byte[] identity;
+        final long expires;
+
+        Entry(byte[] identity, long expires) {
+            this.identity = identity;
+            this.expires = expires;
+        }
+    }
+}
@@ -3,41 +3,331 @@ package com.wire.xenon.crypto.storage;
 import com.wire.bots.cryptobox.IRecord;
 import com.wire.bots.cryptobox.IStorage;
 import com.wire.bots.cryptobox.PreKey;
+import com.wire.xenon.tools.UnitOfWork;
 import org.jdbi.v3.core.Jdbi;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Crypto box storage in the Sessions, Identities and Prekeys tables. Runs in the {@link UnitOfWork} open on the
+ * calling thread, if any.
+ */
 public class JdbiStorage implements IStorage {
+    private final Jdbi jdbi;
     private final SessionsDAO sessionsDAO;
     private final IdentitiesDAO identitiesDAO;
     private final PrekeysDAO prekeysDAO;
+    private final ISessionCache sessionCache;
+    private final SessionIndex sessionIndex;
+    private final PreKeyIndex preKeyIndex;
+    private final IdentityCache identityCache;
+    // Batch of the call running on the thread, see SessionBatch
+    private final ThreadLocal<SessionBatch> current = new ThreadLocal<>();
+    private final ConcurrentHashMap<String, OpenBatches> batches = new ConcurrentHashMap<>();
 
     public JdbiStorage(Jdbi jdbi) {
+        this(jdbi, null, null, 0, 0, null);
+    }
+
+    /**
+     * Storage with a read-through, write-through cache of the sessions in front of the Sessions table.
+     * Use only when this process is the only one serving the bots in this storage (sticky routing), see {@link ISessionCache}.
+     *
+     * @param jdbi    Jdbi
+     * @param maxSize Maximal number of cached sessions
+     * @param ttl     How long a cached session is trusted
+     */
+    public JdbiStorage(Jdbi jdbi, int maxSize, Duration ttl) {
+        this(jdbi, new SessionCache(maxSize, ttl), null, 0, 0, null);
+    }
+
+    /**
+     * Storage with the session cache and a {@link SessionIndex}: devices known to have no session are answered
+     * without a database lookup. Same sticky routing requirement as the cache.
+     *
+     * @param jdbi     Jdbi
+     * @param maxSize  Maximal number of cached sessions
+     * @param ttl      How long a cached session and the index of a box are trusted
+     * @param maxBoxes Maximal number of indexed crypto boxes
+     */
+    public JdbiStorage(Jdbi jdbi, int maxSize, Duration ttl, int maxBoxes) {
+        this(jdbi, new SessionCache(maxSize, ttl), null, maxBoxes, 0, ttl);
+    }
+
+    /**
+     * Same as {@link #JdbiStorage(Jdbi, int, Duration, int)} with a {@link PreKeyIndex} as well: opening a box reads
+     * its prekeys from memory. The prekeys of the indexed boxes stay on the heap.
+     *
+     * @param jdbi           Jdbi
+     * @param maxSize        Maximal number of cached sessions
+     * @param ttl            How long a cached session and the index of a box are trusted
+     * @param maxBoxes       Maximal number of indexed crypto boxes
+     * @param maxPreKeyBoxes Maximal number of crypto boxes whose prekeys are kept in memory
+     */
+    public JdbiStorage(Jdbi jdbi, int maxSize, Duration ttl, int maxBoxes, int maxPreKeyBoxes) {
+        this(jdbi, new SessionCache(maxSize, ttl), null, maxBoxes, maxPreKeyBoxes, ttl);
+    }
+
+    /**
+     * Storage with the given session cache in front of the Sessions table, for example a {@link SessionArena}
+     * to keep the sessions off heap. Same sticky routing requirement, see {@link ISessionCache}.
+     *
+     * @param jdbi         Jdbi
+     * @param sessionCache Session cache
+     */
+    public JdbiStorage(Jdbi jdbi, ISessionCache sessionCache) {
+        this(jdbi, sessionCache, null, 0, 0, null);
+    }
+
+    /**
+     * Storage with the given caches. The identity cache spares the identity lookup when a box is opened again, pass
+     * the same one to all the storages of the bots this process serves.
+     *
+     * @param jdbi          Jdbi
+     * @param sessionCache  Session cache. Can be null
+     * @param identityCache Identity cache. Can be null
+     */
+    public JdbiStorage(Jdbi jdbi, ISessionCache sessionCache, IdentityCache identityCache) {
+        this(jdbi, sessionCache, identityCache, 0, 0, null);
+    }
+
+    private JdbiStorage(Jdbi jdbi, ISessionCache sessionCache, IdentityCache identityCache, int maxBoxes,
+                        int maxPreKeyBoxes, Duration ttl) {
+        this.jdbi = jdbi;
         sessionsDAO = jdbi.onDemand(SessionsDAO.class);
         identitiesDAO = jdbi.onDemand(IdentitiesDAO.class);
         prekeysDAO = jdbi.onDemand(PrekeysDAO.class);
+        this.sessionCache = sessionCache;
+        this.identityCache = identityCache;
+        this.sessionIndex = maxBoxes > 0 ? new SessionIndex(maxBoxes, ttl, id -> sessions().getSids(id)) : null;
+        this.preKeyIndex = maxPreKeyBoxes > 0 ? new PreKeyIndex(maxPreKeyBoxes, ttl, id -> prekeys().get(id)) : null;
     }
 
     @Override
     public IRecord fetchSession(String id, String sid) {
-        Session session = sessionsDAO.get(id, sid);
-        return new Record(id, sid, session == null ? null : session.data); //todo implement commit on UPDATE
+        OpenBatches open = batches.get(id);
+        if (open != null) {
+            byte[] data = open.peek(batch(id), sid);
+            if (data != null)
+                return new Record(id, sid, data == SessionBatch.ABSENT ? null : data);
+        }
+
+        if (sessionCache != null) {
+            ISessionCache.Entry entry = sessionCache.get(id, sid);
+            if (entry != null)
+                return new Record(id, sid, entry.data);
+        }
+
+        if (sessionIndex != null && !sessionIndex.mightExist(id, sid))
+            return new Record(id, sid, null);
+
+        Session session = sessions().get(id, sid);
+        byte[] data = session == null ? null : session.data;
+        if (sessionCache != null)
+            sessionCache.put(id, sid, data);
+        return new Record(id, sid, data); //todo implement commit on UPDATE
+    }
+
+    /**
+     * Starts the write-behind batch of the crypto box on the calling thread, or joins the one the thread already has
+     * open on this box. Only the calling thread (and the tasks it hands the batch over to with {@link #runInBatch})
+     * writes into the batch. The batch must be closed by the calling thread.
+     *
+     * @param id Crypto box id
+     * @return Batch collecting the session updates of this box
+     */
+    public SessionBatch beginBatch(String id) {
+        SessionBatch previous = current.get();
+        if (previous != null && previous.id.equals(id) && previous.retain())
+            return previous;
+
+        SessionBatch batch = new SessionBatch(this, id, previous);
+        batch.retain();
+        batches.compute(id, (k, open) -> {
+            if (open == null)
+                open = new OpenBatches();
+            open.add(batch);
+            return open;
+        });
+        current.set(batch);
+        return batch;
+    }
+
+    /**
+     * @return Batch open on the calling thread or null
+     */
+    public SessionBatch currentBatch() {
+        return current.get();
+    }
+
+    /**
+     * Runs the task on the calling thread as part of the batch. Used to hand the batch of a call over to the threads
+     * of its fan-out. The batch must stay open until the task is done.
+     *
+     * @param batch Batch of the call that started the task
+     * @param task  Task
+     */
+    public void runInBatch(SessionBatch batch, Runnable task) {
+        SessionBatch previous = current.get();
+        current.set(batch);
+        try {
+            task.run();
+        } finally {
+            bind(previous);
+        }
+    }
+
+    /**
+     * Loads the given sessions of the crypto box in one query. The sessions are served from memory by
+     * {@link #fetchSession} until the batch of the box is closed. Does nothing when no batch is open.
+     * Sessions that are already known to the batch or the session cache are not loaded again. The query takes no
+     * row locks: a load that is discarded must not leave locks behind for the rest of the unit of work.
+     *
+     * @param id   Crypto box id
+     * @param sids Session ids
+     * @return Number of sessions found in the database
+     */
+    public int prefetch(String id, Collection<String> sids) {
+        SessionBatch batch = batch(id);
+        OpenBatches open = batches.get(id);
+        if (batch == null || open == null)
+            return 0;
+
+        long version = open.version();
+        LinkedHashMap<String, byte[]> sessions = new LinkedHashMap<>();
+        List<String> query = new ArrayList<>();
+        for (String sid : sids) {
+            if (!open.knows(sid) && (sessionCache == null || !sessionCache.contains(id, sid))) {
+                sessions.put(sid, SessionBatch.ABSENT);
+                if (sessionIndex == null || sessionIndex.mightExist(id, sid))
+                    query.add(sid);
+            }
+        }
+        if (sessions.isEmpty())
+            return 0;
+
+        List<Session> found = query.isEmpty()
+                ? Collections.emptyList()
+                : sessions().get(id, query.toArray(new String[0]));
+        for (Session session : found) {
+            sessions.put(session.sid, session.data);
+        }
+        // a session updated while the query ran is fetched one by one
+        if (!open.load(batch, sessions, version))
+            return 0;
+        if (sessionCache != null)
+            sessions.forEach((sid, data) -> sessionCache.put(id, sid, data == SessionBatch.ABSENT ? null : data));
+        return found.size();
+    }
+
+    void write(String id, Map<String, byte[]> sessions) {
+        List<String> sids = new ArrayList<>(sessions.keySet());
+        List<byte[]> data = new ArrayList<>(sessions.values());
+        sessions().insert(id, sids, data);
+        UnitOfWork.checkpoint(jdbi);
+        if (sessionCache != null)
+            sessions.forEach((sid, update) -> sessionCache.put(id, sid, update));
+        if (sessionIndex != null)
+            sessions.keySet().forEach(sid -> sessionIndex.add(id, sid));
+    }
+
+    void writePreKeys(String id, Map<Integer, byte[]> preKeys) {
+        prekeys().insert(id, new ArrayList<>(preKeys.keySet()), new ArrayList<>(preKeys.values()));
+        UnitOfWork.checkpoint(jdbi);
+        if (preKeyIndex != null)
+            preKeys.forEach((kid, data) -> preKeyIndex.add(id, kid, data));
+    }
+
+    void release(SessionBatch batch) {
+        batches.computeIfPresent(batch.id, (k, open) -> open.remove(batch) ? null : open);
+        if (current.get() == batch)
+            bind(batch.previous);
+    }
+
+    /**
+     * @return Batch the calling thread has open on the box or null
+     */
+    private SessionBatch batch(String id) {
+        SessionBatch batch = current.get();
+        return batch != null && batch.id.equals(id) && batch.isOpen() ? batch : null;
+    }
+
+    private void bind(SessionBatch batch) {
+        if (batch != null)
+            current.set(batch);
+        else
+            current.remove();
+    }
+
+    private SessionsDAO sessions() {
+        return UnitOfWork.attach(jdbi, SessionsDAO.class, sessionsDAO);
+    }
+
+    private IdentitiesDAO identities() {
+        return UnitOfWork.attach(jdbi, IdentitiesDAO.class, identitiesDAO);
+    }
+
+    private PrekeysDAO prekeys() {
+        return UnitOfWork.attach(jdbi, PrekeysDAO.class, prekeysDAO);
+    }
+
+    /**
+     * @return Session cache or null if the sessions are not cached
+     */
+    public ISessionCache getSessionCache() {
+        return sessionCache;
+    }
+
+    /**
+     * @return Prekey index or null if the prekeys are not indexed
+     */
+    public PreKeyIndex getPreKeyIndex() {
+        return preKeyIndex;
+    }
+
+    /**
+     * @return Session index or null if the sessions are not indexed
+     */
+    public SessionIndex getSessionIndex() {
+        return sessionIndex;
     }
 
     @Override
     public byte[] fetchIdentity(String id) {
-        final IdentitiesDAO._Identity identity = identitiesDAO.get(id);
-        return identity != null ? identity.data : null;
+        byte[] ret = identityCache != null ? identityCache.get(id) : null;
+        if (ret != null)
+            return ret;
+
+        final IdentitiesDAO._Identity identity = identities().get(id);
+        if (identity == null)
+            return null;
+        if (identityCache != null)
+            identityCache.put(id, identity.data);
+        return identity.data;
     }
 
     @Override
     public void insertIdentity(String id, byte[] data) {
-        identitiesDAO.insert(id, data);
+        identities().insert(id, data);
+        if (identityCache != null)
+            identityCache.put(id, data);
     }
 
     @Override
     public PreKey[] fetchPrekeys(String id) {
-        List<PreKey> preKeys = prekeysDAO.get(id);
+        if (preKeyIndex != null) {
+            PreKey[] ret = preKeyIndex.get(id);
+            return ret.length > 0 ? ret : null;
+        }
+
+        List<PreKey> preKeys = prekeys().get(id);
         if (preKeys.isEmpty())
             return null;
 
@@ -47,14 +337,27 @@ public class JdbiStorage implements IStorage {
 
     @Override
     public void insertPrekey(String id, int kid, byte[] data) {
-        prekeysDAO.insert(id, kid, data);
+        SessionBatch batch = batch(id);
+        if (batch != null && batch.offerPreKey(kid, data))
+            return;
+        prekeys().insert(id, kid, data);
+        if (preKeyIndex != null)
+            preKeyIndex.add(id, kid, data);
     }
 
     @Override
     public void purge(String id) {
-        sessionsDAO.delete(id);
-        identitiesDAO.delete(id);
-        prekeysDAO.delete(id);
+        if (identityCache != null)
+            identityCache.remove(id);
+        if (sessionCache != null)
+            sessionCache.remove(id);
+        if (sessionIndex != null)
+            sessionIndex.remove(id);
+        if (preKeyIndex != null)
+            preKeyIndex.remove(id);
+        sessions().delete(id);
+        identities().delete(id);
+        prekeys().delete(id);
     }
 
     class Record implements IRecord {
@@ -76,9 +379,108 @@ public class JdbiStorage implements IStorage {
         @Override
         public void persist(byte[] update) {
             if (update != null) {
-                sessionsDAO.insert(id, sid, update);
+                SessionBatch batch = batch(id);
+                OpenBatches open = batches.get(id);
+                if (batch != null && open != null && open.offer(batch, sid, update))
+                    return;
+
+                // before the write so that no batch commits an older state over it, and after it so that no
+                // batch keeps what it prefetched while the write ran
+                supersede(open, sid, update);
+                try {
+                    sessions().insert(id, sid, update);
+                } catch (RuntimeException e) {
+                    if (sessionCache != null)
+                        sessionCache.remove(id, sid);
+                    throw e;
+                }
+                if (sessionCache != null)
+                    sessionCache.put(id, sid, update);
+                if (sessionIndex != null)
+                    sessionIndex.add(id, sid);
+                supersede(batches.get(id), sid, update);
                 //todo implement commits
             }
         }
+
+        private void supersede(OpenBatches open, String sid, byte[] update) {
+            if (open != null)
+                open.supersede(null, sid, update);
+        }
+    }
+
+    /**
+     * Batches open on one crypto box, each owned by a different call. Updates to a session replace the copies the
+     * other batches hold, so every batch sees the latest state and none of them writes back an older one.
+     */
+    private static final class OpenBatches {
+        private final List<SessionBatch> batches = new ArrayList<>(2);
+        // bumped on every update, a prefetch that raced with an update is dropped
+        private long version;
+
+        synchronized void add(SessionBatch batch) {
+            batches.add(batch);
+        }
+
+        /**
+         * @return TRUE if no batch is left
+         */
+        synchronized boolean remove(SessionBatch batch) {
+            batches.remove(batch);
+            return batches.isEmpty();
+        }
+
+        synchronized long version() {
+            return version;
+        }
+
+        /**
+         * @return The session as seen by the owner of the batch: its own update, else the update of another batch,
+         * else what was prefetched. Null if no batch knows the session
+         */
+        synchronized byte[] peek(SessionBatch own, String sid) {
+            byte[] ret = own != null ? own.pending(sid) : null;
+            for (int i = 0; ret == null && i < batches.size(); i++) {
+                if (batches.get(i) != own)
+                    ret = batches.get(i).pending(sid);
+            }
+            if (ret == null && own != null)
+                ret = own.loaded(sid);
+            for (int i = 0; ret == null && i < batches.size(); i++) {
+                if (batches.get(i) != own)
+                    ret = batches.get(i).loaded(sid);
+            }
+            return ret;
+        }
+
+        synchronized boolean knows(String sid) {
+            for (SessionBatch batch : batches) {
+                if (batch.pending(sid) != null || batch.loaded(sid) != null)
+                    return true;
+            }
+            return false;
+        }
+
+        synchronized boolean offer(SessionBatch own, String sid, byte[] data) {
+            if (!own.offer(sid, data))
+                return false;
+            supersede(own, sid, data);
+            return true;
+        }
+
+        synchronized void supersede(SessionBatch except, String sid, byte[] data) {
+            version++;
+            for (SessionBatch batch : batches) {
+                if (batch != except)
+                    batch.supersede(sid, data);
+            }
+        }
+
+        synchronized boolean load(SessionBatch own, Map<String, byte[]> sessions, long version) {
+            if (this.version != version)
+                return false;
+            own.load(sessions);
+            return true;
+        }
     }
 }
@@ -0,0 +1,113 @@
+package com.wire.xenon.crypto.storage;
+
+import com.wire.bots.cryptobox.PreKey;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prekeys of the crypto boxes in memory, keyed by prekey id.
+ *
+ * <p>
+ *     The prekeys of a box are loaded with one query on first use and kept up to date when prekeys are inserted and
+ *     when the box is purged. Opening a box then costs no database round trip.
+ *     Same sticky routing requirement as the {@link SessionIndex}: prekeys generated by another node are not seen
+ *     until the ttl expired.
+ * </p>
+ */
+public class PreKeyIndex {
+    private final LinkedHashMap<String, Box> boxes;
+    private final Loader loader;
+    private final long ttl;
+
+    /**
+     * @param maxBoxes Maximal number of indexed crypto boxes
+     * @param ttl      How long the prekeys of a box are trusted
+     * @param loader   Loads the prekeys of a box
+     */
+    public PreKeyIndex(int maxBoxes, Duration ttl, Loader loader) {
+        this.ttl = ttl.toMillis();
+        this.loader = loader;
+        this.boxes = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Box> eldest) {
+                return size() > maxBoxes;
+            }
+        };
+    }
+
+    /**
+     * @return All the prekeys of the box
+     */
+    public PreKey[] get(String id) {
+        Box box = box(id);
+        synchronized (box) {
+            return box.preKeys.values().toArray(new PreKey[0]);
+        }
+    }
+
+    /**
+     * Records an inserted prekey. Boxes that are not indexed are left alone, they load the prekey with the rest
+     */
+    public void add(String id, int kid, byte[] data) {
+        Box box;
+        synchronized (this) {
+            box = boxes.get(id);
+        }
+        if (box != null) {
+            synchronized (box) {
+                box.preKeys.put(kid, new PreKey(kid, data));
+            }
+        }
+    }
+
+    public synchronized void remove(String id) {
+        boxes.remove(id);
+    }
+
+    /**
+     * @return Number of indexed crypto boxes
+     */
+    public synchronized int size() {
+        return boxes.size();
+    }
+
+    private Box box(String id) {
+        Box box;
+        synchronized (this) {
+            box = boxes.get(id);
+            if (box == null || box.expires < System.currentTimeMillis()) {
+                box = new Box(System.currentTimeMillis() + ttl);
+                boxes.put(id, box);
+            }
+        }
+
+        synchronized (box) {
+            if (!box.loaded) {
+                for (PreKey preKey : loader.load(id)) {
+                    // a prekey added since the box was created is newer
+                    box.preKeys.putIfAbsent(preKey.id, preKey);
+                }
+                box.loaded = true;
+            }
+        }
+        return box;
+    }
+
+    public interface Loader {
+        List<PreKey> load(String id);
+    }
+
+    private static final class Box {
+        private final long expires;
+        private final HashMap<Integer, PreKey> preKeys = new HashMap<>();
+        private boolean loaded;
+
+        Box(long expires) {
+            this.expires = expires;
+        }
+    }
+}
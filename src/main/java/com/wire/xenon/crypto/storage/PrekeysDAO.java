@@ -5,6 +5,7 @@ import org.jdbi.v3.core.mapper.ColumnMapper;
 import org.jdbi.v3.core.statement.StatementContext;
 import org.jdbi.v3.sqlobject.config.RegisterColumnMapper;
 import org.jdbi.v3.sqlobject.customizer.Bind;
+import org.jdbi.v3.sqlobject.statement.SqlBatch;
 import org.jdbi.v3.sqlobject.statement.SqlQuery;
 import org.jdbi.v3.sqlobject.statement.SqlUpdate;
 
@@ -18,6 +19,11 @@ public interface PrekeysDAO {
                @Bind("kid") int kid,
                @Bind("data") byte[] data);
 
+    @SqlBatch("INSERT INTO Prekeys (id, kid, data) VALUES (:id, :kid, :data) ON CONFLICT (id, kid) DO UPDATE SET data = EXCLUDED.data")
+    int[] insert(@Bind("id") String id,
+                 @Bind("kid") List<Integer> kids,
+                 @Bind("data") List<byte[]> data);
+
     @SqlQuery("SELECT kid, data FROM Prekeys WHERE id = :id")
     @RegisterColumnMapper(_Mapper.class)
     List<PreKey> get(@Bind("id") String id);
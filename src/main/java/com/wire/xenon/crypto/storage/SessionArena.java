@@ -0,0 +1,327 @@
+package com.wire.xenon.crypto.storage;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link ISessionCache} keeping the session blobs off heap, for hosts with millions of sessions.
+ *
+ * <p>
+ *     The blobs are stored in direct buffers (slabs of 1MB) cut into slots of one size class each, from 256 bytes
+ *     to 64KB. Only a small fixed size entry per session stays on the heap, so the heap footprint depends on
+ *     {@code maxSize} and not on the size of the sessions. A slab whose sessions are all gone goes back to a shared
+ *     pool and is cut again for whichever size class needs it next. When the memory budget is used up the least
+ *     recently used session of the same size class is evicted. A size class without any slab takes over the slab
+ *     with the fewest sessions, evicting them, so the memory follows the sizes of the sessions over time.
+ *     Sessions bigger than the largest slot are not cached. Same sticky routing requirement as every
+ *     {@link ISessionCache}.
+ * </p>
+ */
+public class SessionArena implements ISessionCache {
+    private static final int MIN_SLOT = 256;
+    private static final int CLASSES = 9;
+    private static final int SLAB_SIZE = 1 << 20;
+    // a slot is referenced by the index of its slab and its number in the slab
+    private static final int SLOT_BITS = 16;
+
+    private final LinkedHashMap<String, Slot> slots;
+    private final SizeClass[] classes = new SizeClass[CLASSES];
+    private final ArrayList<Slab> slabs = new ArrayList<>();
+    // slabs of no size class
+    private final ArrayDeque<Slab> pool = new ArrayDeque<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final long maxBytes;
+    private final long ttl;
+    private long allocated;
+
+    /**
+     * @param maxSize  Maximal number of cached sessions
+     * @param ttl      How long a cached session is trusted
+     * @param maxBytes Maximal off heap memory used for the session blobs
+     */
+    public SessionArena(int maxSize, Duration ttl, long maxBytes) {
+        this.ttl = ttl.toMillis();
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < CLASSES; i++) {
+            classes[i] = new SizeClass(MIN_SLOT << i);
+        }
+        this.slots = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Slot> eldest) {
+                if (size() <= maxSize)
+                    return false;
+                free(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    @Override
+    public synchronized Entry get(String id, String sid) {
+        String key = SessionCache.key(id, sid);
+        Slot slot = slots.get(key);
+        if (slot == null || slot.expires < System.currentTimeMillis()) {
+            if (slot != null)
+                free(slots.remove(key));
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new Entry(read(slot), slot.expires);
+    }
+
+    @Override
+    public synchronized boolean contains(String id, String sid) {
+        Slot slot = slots.get(SessionCache.key(id, sid));
+        return slot != null && slot.expires >= System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized void put(String id, String sid, byte[] data) {
+        String key = SessionCache.key(id, sid);
+        Slot old = slots.remove(key);
+        if (old != null)
+            free(old);
+
+        long expires = System.currentTimeMillis() + ttl;
+        if (data == null) {
+            slots.put(key, new Slot(-1, -1, 0, expires));
+            return;
+        }
+
+        int sizeClass = sizeClass(data.length);
+        if (sizeClass < 0)
+            return;
+        int ref = allocate(sizeClass, key);
+        if (ref < 0)
+            return;
+        slab(ref).write(ref & slotMask(), data);
+        slots.put(key, new Slot(sizeClass, ref, data.length, expires));
+    }
+
+    @Override
+    public synchronized void remove(String id, String sid) {
+        Slot slot = slots.remove(SessionCache.key(id, sid));
+        if (slot != null)
+            free(slot);
+    }
+
+    @Override
+    public synchronized void remove(String id) {
+        String prefix = id + '\n';
+        Iterator<Map.Entry<String, Slot>> iterator = slots.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Slot> next = iterator.next();
+            if (next.getKey().startsWith(prefix)) {
+                free(next.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        return slots.size();
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Off heap memory allocated for the slabs
+     */
+    public synchronized long getAllocated() {
+        return allocated;
+    }
+
+    private byte[] read(Slot slot) {
+        if (slot.sizeClass < 0)
+            return null;
+        byte[] ret = new byte[slot.length];
+        slab(slot.ref).read(slot.ref & slotMask(), ret);
+        return ret;
+    }
+
+    private int allocate(int sizeClass, String key) {
+        SizeClass target = classes[sizeClass];
+        if (target.available.isEmpty()) {
+            if (pool.isEmpty() && allocated + SLAB_SIZE <= maxBytes) {
+                pool.push(new Slab(slabs.size()));
+                slabs.add(pool.peek());
+                allocated += SLAB_SIZE;
+            }
+            if (pool.isEmpty() && !evict(sizeClass))
+                reclaim();
+            // the eviction freed a slot, or emptied a slab into the pool
+            if (target.available.isEmpty()) {
+                Slab slab = pool.poll();
+                if (slab == null)
+                    return -1;
+                slab.cut(sizeClass, target.slotSize);
+                target.available.add(slab);
+            }
+        }
+
+        Slab slab = target.available.iterator().next();
+        int ret = slab.index << SLOT_BITS | slab.take(key);
+        if (slab.isFull())
+            target.available.remove(slab);
+        return ret;
+    }
+
+    // Evicts the least recently used session of the size class
+    private boolean evict(int sizeClass) {
+        Iterator<Slot> iterator = slots.values().iterator();
+        while (iterator.hasNext()) {
+            Slot slot = iterator.next();
+            if (slot.sizeClass == sizeClass) {
+                free(slot);
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Evicts the sessions of the slab with the fewest sessions, the slab goes back to the pool
+    private void reclaim() {
+        Slab victim = null;
+        for (Slab slab : slabs) {
+            if (slab.sizeClass >= 0 && (victim == null || slab.used < victim.used))
+                victim = slab;
+        }
+        if (victim == null)
+            return;
+        for (String key : victim.keys.clone()) {
+            if (key != null)
+                free(slots.remove(key));
+        }
+    }
+
+    private void free(Slot slot) {
+        if (slot.sizeClass < 0)
+            return;
+        Slab slab = slab(slot.ref);
+        SizeClass owner = classes[slab.sizeClass];
+        slab.release(slot.ref & slotMask());
+        if (slab.used == 0) {
+            owner.available.remove(slab);
+            slab.sizeClass = -1;
+            pool.push(slab);
+        } else {
+            owner.available.add(slab);
+        }
+    }
+
+    private Slab slab(int ref) {
+        return slabs.get(ref >>> SLOT_BITS);
+    }
+
+    private static int slotMask() {
+        return (1 << SLOT_BITS) - 1;
+    }
+
+    private static int sizeClass(int length) {
+        for (int i = 0; i < CLASSES; i++) {
+            if (length <= MIN_SLOT << i)
+                return i;
+        }
+        return -1;
+    }
+
+    private static final class Slot {
+        final int sizeClass;
+        final int ref;
+        final int length;
+        final long expires;
+
+        Slot(int sizeClass, int ref, int length, long expires) {
+            this.sizeClass = sizeClass;
+            this.ref = ref;
+            this.length = length;
+            this.expires = expires;
+        }
+    }
+
+    private static final class SizeClass {
+        private final int slotSize;
+        // slabs of this class with a free slot
+        private final LinkedHashSet<Slab> available = new LinkedHashSet<>();
+
+        SizeClass(int slotSize) {
+            this.slotSize = slotSize;
+        }
+    }
+
+    /**
+     * Direct buffer cut into slots of one size while it belongs to a size class
+     */
+    private static final class Slab {
+        private final int index;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(SLAB_SIZE);
+        private int sizeClass = -1;
+        private int slotSize;
+        // key of the session in each slot, to evict them when the slab is reclaimed
+        private String[] keys;
+        private int[] free;
+        private int freeCount;
+        private int used;
+
+        Slab(int index) {
+            this.index = index;
+        }
+
+        void cut(int sizeClass, int slotSize) {
+            int count = SLAB_SIZE / slotSize;
+            this.sizeClass = sizeClass;
+            this.slotSize = slotSize;
+            keys = new String[count];
+            free = new int[count];
+            // lowest slots are taken first
+            for (int i = 0; i < count; i++) {
+                free[i] = count - 1 - i;
+            }
+            freeCount = count;
+        }
+
+        boolean isFull() {
+            return freeCount == 0;
+        }
+
+        int take(String key) {
+            int ret = free[--freeCount];
+            keys[ret] = key;
+            used++;
+            return ret;
+        }
+
+        void release(int slot) {
+            keys[slot] = null;
+            free[freeCount++] = slot;
+            used--;
+        }
+
+        void write(int slot, byte[] data) {
+            buffer.put(slot * slotSize, data);
+        }
+
+        void read(int slot, byte[] dst) {
+            buffer.get(slot * slotSize, dst);
+        }
+    }
+}
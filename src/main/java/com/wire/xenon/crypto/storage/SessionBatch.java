@@ -0,0 +1,146 @@
+package com.wire.xenon.crypto.storage;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the session updates of one crypto box and writes them in one transaction (write-behind).
+ *
+ * <p>
+ *     While the batch is open {@code persist} of the box's sessions only records the update and
+ *     {@code fetchSession} sees the recorded update. The batch belongs to the thread that began it, and to the
+ *     threads its fan-out hands the batch over to ({@link JdbiStorage#runInBatch}). Other threads working on the box
+ *     see the recorded updates but write theirs through, and their update replaces the batch's copy of the session
+ *     so that the commit never brings back an older state. {@link #commit()} is the durability boundary: once it returns, every session update made before
+ *     the call is in the database, so the ciphers can be sent. If a commit fails the batch is failed for good and
+ *     all further commits throw, so no cipher based on a lost update is ever sent.
+ * </p>
+ * <p>
+ *     Sessions loaded in bulk by {@link JdbiStorage#prefetch} are held by the batch until it is closed.
+ *     Prekeys inserted while the batch is open are written with the sessions.
+ * </p>
+ */
+public class SessionBatch implements AutoCloseable {
+    private final JdbiStorage storage;
+    final String id;
+    // Batch the owning thread had open before this one, restored when this one is closed
+    final SessionBatch previous;
+    // Marks a prefetched session that does not exist
+    static final byte[] ABSENT = new byte[0];
+
+    private final LinkedHashMap<String, byte[]> pending = new LinkedHashMap<>();
+    private final HashMap<String, byte[]> loaded = new HashMap<>();
+    private final LinkedHashMap<Integer, byte[]> preKeys = new LinkedHashMap<>();
+    private int refs;
+    private boolean open = true;
+    private RuntimeException failure;
+
+    SessionBatch(JdbiStorage storage, String id, SessionBatch previous) {
+        this.storage = storage;
+        this.id = id;
+        this.previous = previous;
+    }
+
+    /**
+     * Writes the recorded updates in one transaction
+     *
+     * @return Number of sessions and prekeys written
+     */
+    public synchronized int commit() {
+        if (failure != null)
+            throw new IllegalStateException("Session batch failed for: " + id, failure);
+        if (pending.isEmpty() && preKeys.isEmpty())
+            return 0;
+
+        try {
+            if (!preKeys.isEmpty())
+                storage.writePreKeys(id, preKeys);
+            if (!pending.isEmpty())
+                storage.write(id, pending);
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        }
+        int ret = pending.size() + preKeys.size();
+        preKeys.clear();
+        // a prefetch that read the sessions before this commit must not bring back the old state
+        loaded.putAll(pending);
+        pending.clear();
+        return ret;
+    }
+
+    /**
+     * Commits what is left and leaves the batch. Once the owner left, updates are written directly again
+     */
+    @Override
+    public void close() {
+        try {
+            synchronized (this) {
+                if (failure == null)
+                    commit();
+            }
+        } finally {
+            release();
+        }
+    }
+
+    synchronized boolean retain() {
+        if (!open)
+            return false;
+        refs++;
+        return true;
+    }
+
+    synchronized boolean offer(String sid, byte[] data) {
+        if (!open)
+            return false;
+        pending.put(sid, data);
+        return true;
+    }
+
+    synchronized boolean offerPreKey(int kid, byte[] data) {
+        if (!open)
+            return false;
+        preKeys.put(kid, data);
+        return true;
+    }
+
+    synchronized boolean isOpen() {
+        return open;
+    }
+
+    synchronized void load(Map<String, byte[]> sessions) {
+        sessions.forEach(loaded::putIfAbsent);
+    }
+
+    /**
+     * Replaces the batch's copy of the session with a newer state written by another thread
+     */
+    synchronized void supersede(String sid, byte[] data) {
+        if (pending.containsKey(sid))
+            pending.put(sid, data);
+        else if (loaded.containsKey(sid))
+            loaded.put(sid, data);
+    }
+
+    synchronized byte[] pending(String sid) {
+        return pending.get(sid);
+    }
+
+    /**
+     * @return The prefetched session ({@link #ABSENT} if it does not exist) or null
+     */
+    synchronized byte[] loaded(String sid) {
+        return loaded.get(sid);
+    }
+
+    private void release() {
+        synchronized (this) {
+            if (--refs > 0)
+                return;
+            open = false;
+        }
+        storage.release(this);
+    }
+}
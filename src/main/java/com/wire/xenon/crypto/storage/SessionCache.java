@@ -0,0 +1,90 @@
+package com.wire.xenon.crypto.storage;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of session blobs on the heap. Same sticky routing requirement as every {@link ISessionCache}.
+ */
+public class SessionCache implements ISessionCache {
+    private final LinkedHashMap<String, Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final long ttl;
+
+    /**
+     * @param maxSize Maximal number of cached sessions
+     * @param ttl     How long a cached session is trusted
+     */
+    public SessionCache(int maxSize, Duration ttl) {
+        this.ttl = ttl.toMillis();
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    @Override
+    public synchronized Entry get(String id, String sid) {
+        String key = key(id, sid);
+        Entry entry = entries.get(key);
+        if (entry == null || entry.expires < System.currentTimeMillis()) {
+            if (entry != null)
+                entries.remove(key);
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    @Override
+    public synchronized boolean contains(String id, String sid) {
+        Entry entry = entries.get(key(id, sid));
+        return entry != null && entry.expires >= System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized void put(String id, String sid, byte[] data) {
+        entries.put(key(id, sid), new Entry(data, System.currentTimeMillis() + ttl));
+    }
+
+    @Override
+    public synchronized void remove(String id, String sid) {
+        entries.remove(key(id, sid));
+    }
+
+    @Override
+    public synchronized void remove(String id) {
+        String prefix = id + '\n';
+        Iterator<String> iterator = entries.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().startsWith(prefix))
+                iterator.remove();
+        }
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    static String key(String id, String sid) {
+        return id + '\n' + sid;
+    }
+}
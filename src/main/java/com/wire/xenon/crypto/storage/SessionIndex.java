@@ -0,0 +1,153 @@
+package com.wire.xenon.crypto.storage;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Which sessions exist, per crypto box, so that a device without a session is known without asking the database.
+ *
+ * <p>
+ *     The session ids of a box are loaded with one query on first use and kept up to date on persist and purge.
+ *     Only 64 bit hashes of the session ids are kept: a collision can make a missing session look existing (then
+ *     the database is asked as before), an existing session never looks missing. Like {@link SessionCache} the index
+ *     is only exact as long as this process is the only writer of the sessions of the box, a box is reloaded once the
+ *     ttl expired.
+ * </p>
+ */
+public class SessionIndex {
+    private final LinkedHashMap<String, Box> boxes;
+    private final Loader loader;
+    private final long ttl;
+
+    /**
+     * @param maxBoxes Maximal number of indexed crypto boxes
+     * @param ttl      How long the index of a box is trusted
+     * @param loader   Loads the session ids of a box
+     */
+    public SessionIndex(int maxBoxes, Duration ttl, Loader loader) {
+        this.ttl = ttl.toMillis();
+        this.loader = loader;
+        this.boxes = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Box> eldest) {
+                return size() > maxBoxes;
+            }
+        };
+    }
+
+    /**
+     * @return False if the session certainly does not exist
+     */
+    public boolean mightExist(String id, String sid) {
+        Box box;
+        synchronized (this) {
+            box = boxes.get(id);
+            if (box == null || box.expires < System.currentTimeMillis()) {
+                box = new Box(System.currentTimeMillis() + ttl);
+                boxes.put(id, box);
+            }
+        }
+
+        synchronized (box) {
+            if (!box.loaded) {
+                for (String loaded : loader.load(id)) {
+                    box.add(hash(loaded));
+                }
+                box.loaded = true;
+            }
+            return box.contains(hash(sid));
+        }
+    }
+
+    /**
+     * Records a persisted session. Boxes that are not indexed are left alone, they load the session with the rest
+     */
+    public void add(String id, String sid) {
+        Box box;
+        synchronized (this) {
+            box = boxes.get(id);
+        }
+        if (box != null) {
+            synchronized (box) {
+                box.add(hash(sid));
+            }
+        }
+    }
+
+    public synchronized void remove(String id) {
+        boxes.remove(id);
+    }
+
+    /**
+     * @return Number of indexed crypto boxes
+     */
+    public synchronized int size() {
+        return boxes.size();
+    }
+
+    // FNV-1a, 0 marks an empty slot
+    private static long hash(String sid) {
+        long ret = 0xcbf29ce484222325L;
+        for (int i = 0; i < sid.length(); i++) {
+            ret ^= sid.charAt(i);
+            ret *= 0x100000001b3L;
+        }
+        return ret != 0 ? ret : 1;
+    }
+
+    public interface Loader {
+        List<String> load(String id);
+    }
+
+    /**
+     * Open addressing set of session id hashes
+     */
+    private static final class Box {
+        private final long expires;
+        private long[] table = new long[16];
+        private int count;
+        private boolean loaded;
+
+        Box(long expires) {
+            this.expires = expires;
+        }
+
+        boolean contains(long hash) {
+            int mask = table.length - 1;
+            for (int i = (int) hash & mask; table[i] != 0; i = (i + 1) & mask) {
+                if (table[i] == hash)
+                    return true;
+            }
+            return false;
+        }
+
+        void add(long hash) {
+            if (contains(hash))
+                return;
+            if (2 * (count + 1) > table.length)
+                grow();
+            insert(table, hash);
+            count++;
+        }
+
+        private void grow() {
+            long[] ret = new long[table.length * 2];
+            for (long hash : table) {
+                if (hash != 0)
+                    insert(ret, hash);
+            }
+            table = ret;
+        }
+
+        private static void insert(long[] table, long hash) {
+            int mask = table.length - 1;
+            int i = (int) hash & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = hash;
+        }
+    }
+}
@@ -4,11 +4,13 @@ import org.jdbi.v3.core.mapper.ColumnMapper;
 import org.jdbi.v3.core.statement.StatementContext;
 import org.jdbi.v3.sqlobject.config.RegisterColumnMapper;
 import org.jdbi.v3.sqlobject.customizer.Bind;
+import org.jdbi.v3.sqlobject.statement.SqlBatch;
 import org.jdbi.v3.sqlobject.statement.SqlQuery;
 import org.jdbi.v3.sqlobject.statement.SqlUpdate;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.List;
 
 public interface SessionsDAO {
     @SqlUpdate("INSERT INTO Sessions (id, sid, data) VALUES (:id, :sid, :data) ON CONFLICT (id, sid) DO UPDATE SET data = EXCLUDED.data")
@@ -16,11 +18,24 @@ public interface SessionsDAO {
                @Bind("sid") String sid,
                @Bind("data") byte[] data);
 
+    @SqlBatch("INSERT INTO Sessions (id, sid, data) VALUES (:id, :sid, :data) ON CONFLICT (id, sid) DO UPDATE SET data = EXCLUDED.data")
+    int[] insert(@Bind("id") String id,
+                 @Bind("sid") List<String> sids,
+                 @Bind("data") List<byte[]> data);
+
     @SqlQuery("SELECT * FROM Sessions WHERE id = :id AND sid = :sid FOR UPDATE")
     @RegisterColumnMapper(_Mapper.class)
     Session get(@Bind("id") String id,
                 @Bind("sid") String sid);
 
+    @SqlQuery("SELECT * FROM Sessions WHERE id = :id AND sid = ANY(:sids)")
+    @RegisterColumnMapper(_Mapper.class)
+    List<Session> get(@Bind("id") String id,
+                      @Bind("sids") String[] sids);
+
+    @SqlQuery("SELECT sid FROM Sessions WHERE id = :id")
+    List<String> getSids(@Bind("id") String id);
+
     @SqlUpdate("DELETE FROM Sessions WHERE id = :id")
     int delete(@Bind("id") String id);
 
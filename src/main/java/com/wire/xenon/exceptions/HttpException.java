@@ -9,6 +9,7 @@ public class HttpException extends Exception {
     private int code;
     private String message;
     private String label;
+    private long retryAfter;
 
     public HttpException(String message,
                          int code) {
@@ -64,4 +65,15 @@ public class HttpException extends Exception {
     public void setLabel(String label) {
         this.label = label;
     }
+
+    /**
+     * @return Value of the Retry-After header in milliseconds. 0 when the Backend did not send it
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+
+    public void setRetryAfter(long retryAfter) {
+        this.retryAfter = retryAfter;
+    }
 }
@@ -0,0 +1,294 @@
+package com.wire.xenon.factories;
+
+import com.wire.bots.cryptobox.CryptoException;
+import com.wire.xenon.backend.models.QualifiedId;
+import com.wire.xenon.crypto.Cipher;
+import com.wire.xenon.crypto.Crypto;
+import com.wire.xenon.crypto.DecryptResult;
+import com.wire.xenon.models.otr.DeviceSet;
+import com.wire.xenon.models.otr.Missing;
+import com.wire.xenon.models.otr.PreKey;
+import com.wire.xenon.models.otr.PreKeys;
+import com.wire.xenon.models.otr.RawRecipients;
+import com.wire.xenon.models.otr.Recipients;
+import com.wire.xenon.tools.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the crypto boxes open between events, in front of another {@link CryptoFactory}.
+ *
+ * <p>
+ *     {@link #create} hands out a lease on the open box of the bot. Closing the lease returns the box to the pool,
+ *     the box itself is closed when it was not leased for {@code idleTime} or when more than {@code maxOpen} boxes
+ *     are open (least recently used first). Boxes in use are never closed, so {@code maxOpen} can be exceeded while
+ *     all the boxes are leased. Idle boxes are swept when a box is leased.
+ * </p>
+ */
+public class PooledCryptoFactory implements CryptoFactory, Closeable {
+    private final CryptoFactory factory;
+    private final int maxOpen;
+    private final long idleTime;
+    private final LinkedHashMap<UUID, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long hits;
+    private long misses;
+    private long evictions;
+    private boolean closed;
+
+    /**
+     * @param factory  Opens the boxes
+     * @param maxOpen  Maximal number of boxes kept open
+     * @param idleTime Boxes not leased for this long are closed
+     */
+    public PooledCryptoFactory(CryptoFactory factory, int maxOpen, Duration idleTime) {
+        this.factory = factory;
+        this.maxOpen = maxOpen;
+        this.idleTime = idleTime.toMillis();
+    }
+
+    /**
+     * @return Lease on the open box of the bot. Closing the lease returns the box to the pool
+     */
+    @Override
+    public Crypto create(UUID botId) throws CryptoException {
+        Entry entry;
+        synchronized (this) {
+            if (closed)
+                throw new IllegalStateException("Crypto pool closed");
+            entry = entries.get(botId);
+            if (entry == null) {
+                entry = new Entry(botId);
+                entries.put(botId, entry);
+                misses++;
+            } else {
+                hits++;
+            }
+            entry.refs++;
+        }
+        evict();
+
+        try {
+            return new Lease(entry, entry.open());
+        } catch (CryptoException | RuntimeException e) {
+            release(entry);
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the boxes that were not leased for the idle time
+     */
+    public void evict() {
+        List<Entry> evicted = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (entry.refs == 0 && (entries.size() > maxOpen || now - entry.lastUsed > idleTime)) {
+                    iterator.remove();
+                    evicted.add(entry);
+                    evictions++;
+                }
+            }
+        }
+        evicted.forEach(Entry::close);
+    }
+
+    /**
+     * Closes the boxes that are not in use. The others are closed once their lease is closed
+     */
+    @Override
+    public void close() {
+        List<Entry> idle = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (entry.refs == 0) {
+                    iterator.remove();
+                    idle.add(entry);
+                }
+            }
+        }
+        idle.forEach(Entry::close);
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return Number of pooled boxes, leased or not
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void release(Entry entry) {
+        boolean close;
+        synchronized (this) {
+            entry.refs--;
+            entry.lastUsed = System.currentTimeMillis();
+            close = entry.refs == 0 && (closed || entry.broken || entry.crypto == null);
+            if (close)
+                entries.remove(entry.botId, entry);
+        }
+        if (close)
+            entry.close();
+    }
+
+    // Purged boxes are not handed out again
+    private synchronized void discard(Entry entry) {
+        entry.broken = true;
+        entries.remove(entry.botId, entry);
+    }
+
+    private final class Entry {
+        final UUID botId;
+        Crypto crypto;
+        int refs;
+        long lastUsed = System.currentTimeMillis();
+        boolean broken;
+
+        Entry(UUID botId) {
+            this.botId = botId;
+        }
+
+        synchronized Crypto open() throws CryptoException {
+            if (crypto == null)
+                crypto = factory.create(botId);
+            return crypto;
+        }
+
+        synchronized void close() {
+            if (crypto == null)
+                return;
+            try {
+                crypto.close();
+            } catch (IOException e) {
+                Logger.exception(e, "PooledCryptoFactory: failed to close the box of bot: %s", botId);
+            }
+        }
+    }
+
+    /**
+     * Crypto box of the pool. Delegates to the box, except for close. A closed lease throws
+     * {@link IllegalStateException}
+     */
+    private final class Lease implements Crypto {
+        private final Entry entry;
+        private final Crypto crypto;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Lease(Entry entry, Crypto crypto) {
+            this.entry = entry;
+            this.crypto = crypto;
+        }
+
+        @Override
+        public byte[] getIdentity() throws CryptoException {
+            return crypto().getIdentity();
+        }
+
+        @Override
+        public byte[] getLocalFingerprint() throws CryptoException {
+            return crypto().getLocalFingerprint();
+        }
+
+        @Override
+        public PreKey newLastPreKey() throws CryptoException {
+            return crypto().newLastPreKey();
+        }
+
+        @Override
+        public ArrayList<PreKey> newPreKeys(int from, int count) throws CryptoException {
+            return crypto().newPreKeys(from, count);
+        }
+
+        @Override
+        public Recipients encrypt(PreKeys preKeys, byte[] content) throws CryptoException {
+            return crypto().encrypt(preKeys, content);
+        }
+
+        @Override
+        public Recipients encrypt(Missing missing, byte[] content) throws CryptoException {
+            return crypto().encrypt(missing, content);
+        }
+
+        @Override
+        public RawRecipients encryptRaw(PreKeys preKeys, byte[] content) throws CryptoException {
+            return crypto().encryptRaw(preKeys, content);
+        }
+
+        @Override
+        public RawRecipients encryptRaw(Missing missing, byte[] content) throws CryptoException {
+            return crypto().encryptRaw(missing, content);
+        }
+
+        @Override
+        public RawRecipients encryptRaw(DeviceSet devices, byte[] content) throws CryptoException {
+            return crypto().encryptRaw(devices, content);
+        }
+
+        @Override
+        public String decrypt(QualifiedId userId, String clientId, String cypher) throws CryptoException {
+            return crypto().decrypt(userId, clientId, cypher);
+        }
+
+        @Override
+        public byte[] decrypt(QualifiedId userId, String clientId, byte[] cypher) throws CryptoException {
+            return crypto().decrypt(userId, clientId, cypher);
+        }
+
+        @Override
+        public List<DecryptResult> decryptBatch(List<Cipher> ciphers) throws CryptoException {
+            return crypto().decryptBatch(ciphers);
+        }
+
+        @Override
+        public boolean isClosed() {
+            return released.get() || crypto.isClosed();
+        }
+
+        @Override
+        public void purge() throws IOException {
+            Crypto box = crypto();
+            discard(entry);
+            box.purge();
+        }
+
+        // once released the box may be evicted and closed at any time
+        private Crypto crypto() {
+            if (released.get())
+                throw new IllegalStateException("Crypto box already returned to the pool");
+            return crypto;
+        }
+
+        /**
+         * Returns the box to the pool
+         */
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true))
+                release(entry);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.wire.xenon.models;
+
+import com.wire.xenon.models.otr.Devices;
+
+import java.util.UUID;
+
+/**
+ * Outcome of sending one message into a conversation.
+ */
+public class SendReport {
+    private final UUID messageId;
+    private final int recipients;
+    private final Devices devices;
+
+    public SendReport(UUID messageId, int recipients, Devices devices) {
+        this.messageId = messageId;
+        this.recipients = recipients;
+        this.devices = devices;
+    }
+
+    public UUID getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * @return Number of devices the message was encrypted for
+     */
+    public int getRecipients() {
+        return recipients;
+    }
+
+    /**
+     * @return Last response from the Backend
+     */
+    public Devices getDevices() {
+        return devices;
+    }
+
+    /**
+     * @return TRUE if no device remained missing after the prekey fallback
+     */
+    public boolean isComplete() {
+        return devices == null || devices.hasMissing();
+    }
+}
@@ -0,0 +1,252 @@
+package com.wire.xenon.models.otr;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.wire.xenon.backend.models.QualifiedId;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Immutable, compact set of devices (clients) grouped by users. Read only counterpart of {@link Missing}.
+ *
+ * <p>
+ *     The users and their clients are kept in parallel arrays: the clients of user {@code i} are
+ *     {@code clients[offsets[i]]..clients[offsets[i + 1] - 1]}. Users of the same domain are next to each other.
+ *     Iterating the set copies nothing and creates no ids, which matters because it is iterated on every send.
+ *     Looking up a user goes through an index built on the first lookup in a large set.
+ *     Serialized to JSON in the same shape as {@link Missing}. The empty domain stays the empty domain, it is the
+ *     key {@link Missing} and the cache use for the unqualified users.
+ * </p>
+ */
+@JsonSerialize(using = DeviceSet.Serializer.class)
+@JsonDeserialize(using = DeviceSet.Deserializer.class)
+public final class DeviceSet {
+    public static final DeviceSet EMPTY = new DeviceSet(new QualifiedId[0], new int[]{0}, new String[0]);
+    // below this number of users a scan is cheaper than the index
+    private static final int INDEX_THRESHOLD = 8;
+
+    private final QualifiedId[] users;
+    private final int[] offsets;
+    private final String[] clients;
+    // read only view of the clients of each user, made once so iterating allocates nothing
+    private final Clients[] views;
+    private volatile HashMap<QualifiedId, Integer> index;
+
+    private DeviceSet(QualifiedId[] users, int[] offsets, String[] clients) {
+        this.users = users;
+        this.offsets = offsets;
+        this.clients = clients;
+        this.views = new Clients[users.length];
+        for (int i = 0; i < users.length; i++) {
+            views[i] = new Clients(offsets[i], offsets[i + 1]);
+        }
+    }
+
+    public static DeviceSet of(Missing missing) {
+        Builder builder = new Builder();
+        missing.forEach((domain, users) -> users.forEach((user, clients) ->
+                builder.add(QualifiedId.of(user, domain), clients)));
+        return builder.build();
+    }
+
+    public Missing toMissing() {
+        Missing ret = new Missing();
+        for (int i = 0; i < users.length; i++) {
+            ret.add(users[i], new ArrayList<>(clients(i)));
+        }
+        return ret;
+    }
+
+    /**
+     * @return Number of users
+     */
+    public int userCount() {
+        return users.length;
+    }
+
+    public QualifiedId user(int index) {
+        return users[index];
+    }
+
+    /**
+     * @return Clients of the user at the given index. The list is a view, nothing is copied
+     */
+    public List<String> clients(int index) {
+        return views[index];
+    }
+
+    /**
+     * @return Number of devices
+     */
+    public int size() {
+        return clients.length;
+    }
+
+    public boolean isEmpty() {
+        return clients.length == 0;
+    }
+
+    public List<QualifiedId> toUserIds() {
+        return Collections.unmodifiableList(Arrays.asList(users));
+    }
+
+    /**
+     * @return Clients of the user or an empty list if the user is not in this set
+     */
+    public List<String> toClients(QualifiedId userId) {
+        int index = indexOf(userId);
+        return index >= 0 ? clients(index) : Collections.emptyList();
+    }
+
+    /**
+     * @return Subset with only the devices of the given user
+     */
+    public DeviceSet only(QualifiedId userId) {
+        int index = indexOf(userId);
+        if (index < 0)
+            return EMPTY;
+        String[] userClients = Arrays.copyOfRange(clients, offsets[index], offsets[index + 1]);
+        return new DeviceSet(new QualifiedId[]{users[index]}, new int[]{0, userClients.length}, userClients);
+    }
+
+    private int indexOf(QualifiedId userId) {
+        if (users.length < INDEX_THRESHOLD) {
+            for (int i = 0; i < users.length; i++) {
+                if (users[i].equals(userId))
+                    return i;
+            }
+            return -1;
+        }
+
+        HashMap<QualifiedId, Integer> ret = index;
+        if (ret == null) {
+            // racing threads build the same index
+            ret = new HashMap<>(users.length * 2);
+            for (int i = 0; i < users.length; i++) {
+                ret.put(users[i], i);
+            }
+            index = ret;
+        }
+        return ret.getOrDefault(userId, -1);
+    }
+
+    private final class Clients extends AbstractList<String> implements RandomAccess {
+        private final int from;
+        private final int to;
+
+        Clients(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public String get(int index) {
+            Objects.checkIndex(index, to - from);
+            return clients[from + index];
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+    }
+
+    /**
+     * Collects users in the order they are added. Users must be added grouped by domain
+     */
+    private static class Builder {
+        private final List<QualifiedId> users = new ArrayList<>();
+        private final List<String> clients = new ArrayList<>();
+        private final List<Integer> offsets = new ArrayList<>();
+
+        void add(QualifiedId userId, Collection<String> userClients) {
+            if (userClients.isEmpty())
+                return;
+            offsets.add(clients.size());
+            users.add(userId);
+            clients.addAll(userClients);
+        }
+
+        DeviceSet build() {
+            if (users.isEmpty())
+                return EMPTY;
+            int[] ret = new int[offsets.size() + 1];
+            for (int i = 0; i < offsets.size(); i++) {
+                ret[i] = offsets.get(i);
+            }
+            ret[offsets.size()] = clients.size();
+            return new DeviceSet(users.toArray(new QualifiedId[0]), ret, clients.toArray(new String[0]));
+        }
+    }
+
+    public static class Serializer extends StdSerializer<DeviceSet> {
+        public Serializer() {
+            super(DeviceSet.class);
+        }
+
+        @Override
+        public void serialize(DeviceSet set, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            gen.writeStartObject();
+            String domain = null;
+            for (int i = 0; i < set.users.length; i++) {
+                QualifiedId userId = set.users[i];
+                if (i == 0 || !Objects.equals(userId.domain, domain)) {
+                    if (i > 0)
+                        gen.writeEndObject();
+                    domain = userId.domain;
+                    gen.writeFieldName(domain != null ? domain : "");
+                    gen.writeStartObject();
+                }
+                gen.writeFieldName(userId.id.toString());
+                gen.writeStartArray();
+                for (int c = set.offsets[i]; c < set.offsets[i + 1]; c++) {
+                    gen.writeString(set.clients[c]);
+                }
+                gen.writeEndArray();
+            }
+            if (set.users.length > 0)
+                gen.writeEndObject();
+            gen.writeEndObject();
+        }
+    }
+
+    public static class Deserializer extends StdDeserializer<DeviceSet> {
+        public Deserializer() {
+            super(DeviceSet.class);
+        }
+
+        @Override
+        public DeviceSet deserialize(JsonParser p, DeserializationContext ctx) throws IOException {
+            Builder builder = new Builder();
+            expect(p, p.currentToken(), JsonToken.START_OBJECT, ctx);
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String domain = p.currentName();
+                expect(p, p.nextToken(), JsonToken.START_OBJECT, ctx);
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    UUID user = UUID.fromString(p.currentName());
+                    expect(p, p.nextToken(), JsonToken.START_ARRAY, ctx);
+                    List<String> clients = new ArrayList<>();
+                    while (p.nextToken() != JsonToken.END_ARRAY) {
+                        clients.add(p.getValueAsString());
+                    }
+                    builder.add(QualifiedId.of(user, domain), clients);
+                }
+            }
+            return builder.build();
+        }
+
+        private static void expect(JsonParser p, JsonToken token, JsonToken expected, DeserializationContext ctx)
+                throws IOException {
+            if (token != expected)
+                ctx.reportWrongTokenException(DeviceSet.class, expected, "Unexpected token %s", token);
+        }
+    }
+}
@@ -21,10 +21,6 @@ package com.wire.xenon.models.otr;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
-import java.util.Collection;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
-
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class Devices {
     @JsonProperty
@@ -47,12 +43,6 @@ public class Devices {
     }
 
     public int size() {
-        int ret = 0;
-        for (ConcurrentHashMap<UUID, Collection<String>> users : missing.values()) {
-            for (Collection<String> clients : users.values()) {
-                ret += clients.size();
-            }
-        }
-        return ret;
+        return missing.count();
     }
 }
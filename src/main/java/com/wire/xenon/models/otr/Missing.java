@@ -48,4 +48,14 @@ public class Missing extends ConcurrentHashMap<String, ConcurrentHashMap<UUID, C
             return all;
         });
     }
+
+    public int count() {
+        int ret = 0;
+        for (ConcurrentHashMap<UUID, Collection<String>> users : values()) {
+            for (Collection<String> clients : users.values()) {
+                ret += clients.size();
+            }
+        }
+        return ret;
+    }
 }
@@ -19,33 +19,82 @@
 package com.wire.xenon.models.otr;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import com.wire.xenon.backend.models.QualifiedId;
 
 import javax.validation.constraints.NotNull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Base64;
 
+/**
+ * Request body of a Proteus message.
+ *
+ * <p>
+ *     When created from {@link RawRecipients} the ciphers are kept as bytes and Base64 encoded only while the body is
+ *     written (see {@link OtrMessageSerializer}), so no String is allocated per device.
+ * </p>
+ */
+@JsonSerialize(using = OtrMessageSerializer.class)
 public class OtrMessage {
+    private final static ObjectWriter writer = new ObjectMapper()
+            .writer()
+            .without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
     @JsonProperty
     @NotNull
     private final String sender; //clientId of the sender
 
+    // for a message created from RawRecipients, the encoded ciphers until the next add
     @JsonProperty
-    private final Recipients recipients;
+    private volatile Recipients recipients;
 
+    private final RawRecipients raw;
 
     public OtrMessage(String clientId, Recipients recipients) {
         this.sender = clientId;
         this.recipients = recipients;
+        this.raw = null;
+    }
+
+    public OtrMessage(String clientId, RawRecipients recipients) {
+        this.sender = clientId;
+        this.raw = recipients;
     }
 
     public void add(Recipients rec) {
-        recipients.add(rec);
+        if (raw == null) {
+            recipients.add(rec);
+            return;
+        }
+        rec.forEach((userId, clients) -> clients.forEach((clientId, cipher) ->
+                raw.add(userId, clientId, Base64.getDecoder().decode(cipher))));
+        recipients = null;
+    }
+
+    public void add(RawRecipients rec) {
+        if (raw == null) {
+            recipients.add(rec.toRecipients());
+            return;
+        }
+        raw.add(rec);
+        recipients = null;
     }
 
     public String get(QualifiedId userId, String clientId) {
-        return recipients.get(userId, clientId);
+        if (raw == null)
+            return recipients.get(userId, clientId);
+        byte[] cipher = raw.get(userId, clientId);
+        return cipher != null ? Base64.getEncoder().encodeToString(cipher) : null;
     }
 
     public int size() {
+        if (raw != null)
+            return raw.count();
+
         int count = 0;
         for (ClientCipher devs : recipients.values()) {
             count += devs.size();
@@ -57,7 +106,32 @@ public class OtrMessage {
         return sender;
     }
 
+    /**
+     * @return Base64 encoded ciphers. For a message created from {@link RawRecipients} they are encoded on the first
+     * call after a change
+     */
     public Recipients getRecipients() {
-        return recipients;
+        Recipients ret = recipients;
+        if (ret == null && raw != null) {
+            ret = raw.toRecipients();
+            recipients = ret;
+        }
+        return ret;
+    }
+
+    /**
+     * @return Raw ciphers or null if this message was created from {@link Recipients}
+     */
+    public RawRecipients getRawRecipients() {
+        return raw;
+    }
+
+    /**
+     * Writes the JSON body straight into the stream. The stream is left open
+     *
+     * @param out Request body
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        writer.writeValue(out, this);
     }
 }
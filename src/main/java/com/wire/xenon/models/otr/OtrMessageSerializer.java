@@ -0,0 +1,47 @@
+package com.wire.xenon.models.otr;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.wire.xenon.backend.models.QualifiedId;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Writes {@link OtrMessage} in the same shape as the plain bean serialization. Raw ciphers are streamed as Base64
+ * by the generator (writeBinary), without building the intermediate Strings and maps.
+ */
+public class OtrMessageSerializer extends StdSerializer<OtrMessage> {
+
+    public OtrMessageSerializer() {
+        super(OtrMessage.class);
+    }
+
+    @Override
+    public void serialize(OtrMessage msg, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        gen.writeStartObject();
+        gen.writeStringField("sender", msg.getSender());
+
+        RawRecipients raw = msg.getRawRecipients();
+        if (raw == null) {
+            provider.defaultSerializeField("recipients", msg.getRecipients(), gen);
+        } else {
+            JsonSerializer<Object> keySerializer = provider.findKeySerializer(QualifiedId.class, null);
+            gen.writeFieldName("recipients");
+            gen.writeStartObject();
+            for (Map.Entry<QualifiedId, Map<String, byte[]>> user : raw.entrySet()) {
+                keySerializer.serialize(user.getKey(), gen, provider);
+                gen.writeStartObject();
+                for (Map.Entry<String, byte[]> client : user.getValue().entrySet()) {
+                    gen.writeFieldName(client.getKey());
+                    gen.writeBinary(client.getValue());
+                }
+                gen.writeEndObject();
+            }
+            gen.writeEndObject();
+        }
+        gen.writeEndObject();
+    }
+}
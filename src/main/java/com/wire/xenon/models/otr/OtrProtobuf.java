@@ -0,0 +1,102 @@
+package com.wire.xenon.models.otr;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import com.wire.messages.Otr;
+import com.wire.xenon.backend.models.QualifiedId;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Conversion between the raw ciphers and the qualified protobuf OTR envelope (QualifiedNewOtrMessage).
+ *
+ * <p>
+ *     The protobuf envelope carries the ciphers as bytes, so compared to the JSON body there is no Base64
+ *     step and no String allocated per device.
+ * </p>
+ */
+public class OtrProtobuf {
+
+    /**
+     * @param sender        Client id of the sender
+     * @param recipients    Raw ciphers
+     * @param userId        When not null only missing devices of this user are reported (partial message)
+     * @param ignoreMissing When TRUE the Backend accepts the message even if some devices are missing
+     * @return Protobuf envelope
+     */
+    public static Otr.QualifiedNewOtrMessage build(String sender, RawRecipients recipients, QualifiedId userId,
+                                                   boolean ignoreMissing) {
+        Otr.QualifiedNewOtrMessage.Builder builder = Otr.QualifiedNewOtrMessage.newBuilder()
+                .setSender(toClientId(sender));
+
+        // one entry per domain holding all the users of that domain
+        Map<String, Otr.QualifiedUserEntry.Builder> domains = new HashMap<>();
+        for (Map.Entry<QualifiedId, Map<String, byte[]>> user : recipients.entrySet()) {
+            QualifiedId qualifiedId = user.getKey();
+            String domain = qualifiedId.domain != null ? qualifiedId.domain : "";
+            Otr.UserEntry.Builder entry = domains
+                    .computeIfAbsent(domain, k -> builder.addRecipientsBuilder().setDomain(k))
+                    .addEntriesBuilder()
+                    .setUser(Otr.UserId.newBuilder().setUuid(toBytes(qualifiedId.id)));
+            for (Map.Entry<String, byte[]> client : user.getValue().entrySet()) {
+                // the ciphers are not modified after encryption, no need to copy them
+                entry.addClientsBuilder()
+                        .setClient(toClientId(client.getKey()))
+                        .setText(UnsafeByteOperations.unsafeWrap(client.getValue()));
+            }
+        }
+
+        if (ignoreMissing) {
+            builder.setIgnoreAll(Otr.ClientMismatchStrategy.IgnoreAll.getDefaultInstance());
+        } else if (userId != null) {
+            Otr.QualifiedUserId.Builder qualifiedUserId = Otr.QualifiedUserId.newBuilder()
+                    .setId(userId.id.toString())
+                    .setDomain(userId.domain != null ? userId.domain : "");
+            builder.setReportOnly(Otr.ClientMismatchStrategy.ReportOnly.newBuilder().addUserIds(qualifiedUserId));
+        } else {
+            builder.setReportAll(Otr.ClientMismatchStrategy.ReportAll.getDefaultInstance());
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param msg Protobuf envelope
+     * @return The same message as JSON body
+     */
+    public static OtrMessage toOtrMessage(Otr.QualifiedNewOtrMessage msg) {
+        RawRecipients recipients = new RawRecipients();
+        for (Otr.QualifiedUserEntry domain : msg.getRecipientsList()) {
+            String domainName = domain.getDomain().isEmpty() ? null : domain.getDomain();
+            for (Otr.UserEntry entry : domain.getEntriesList()) {
+                QualifiedId userId = QualifiedId.of(toUUID(entry.getUser().getUuid()), domainName);
+                for (Otr.ClientEntry client : entry.getClientsList()) {
+                    recipients.add(userId, toClientId(client.getClient()), client.getText().toByteArray());
+                }
+            }
+        }
+        return new OtrMessage(toClientId(msg.getSender()), recipients);
+    }
+
+    private static Otr.ClientId toClientId(String clientId) {
+        return Otr.ClientId.newBuilder().setClient(Long.parseUnsignedLong(clientId, 16)).build();
+    }
+
+    private static String toClientId(Otr.ClientId clientId) {
+        return Long.toHexString(clientId.getClient());
+    }
+
+    private static ByteString toBytes(UUID uuid) {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+        return UnsafeByteOperations.unsafeWrap(buffer.array());
+    }
+
+    private static UUID toUUID(ByteString bytes) {
+        ByteBuffer buffer = bytes.asReadOnlyByteBuffer();
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+}
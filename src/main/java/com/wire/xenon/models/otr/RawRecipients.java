@@ -0,0 +1,62 @@
+package com.wire.xenon.models.otr;
+
+import com.wire.xenon.backend.models.QualifiedId;
+
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Raw (not Base64 encoded) ciphers of one message, grouped by users. Binary counterpart of {@link Recipients}.
+ */
+public class RawRecipients extends HashMap<QualifiedId, Map<String, byte[]>> {
+
+    /**
+     * @return Decoded ciphers of the Base64 encoded ones
+     */
+    public static RawRecipients of(Recipients recipients) {
+        RawRecipients ret = new RawRecipients();
+        recipients.forEach((userId, clients) -> clients.forEach((clientId, cipher) ->
+                ret.add(userId, clientId, Base64.getDecoder().decode(cipher))));
+        return ret;
+    }
+
+    public byte[] get(QualifiedId userId, String clientId) {
+        Map<String, byte[]> clients = get(userId);
+        return clients != null ? clients.get(clientId) : null;
+    }
+
+    public boolean contains(QualifiedId userId, String clientId) {
+        Map<String, byte[]> clients = get(userId);
+        return clients != null && clients.containsKey(clientId);
+    }
+
+    public void add(QualifiedId userId, String clientId, byte[] cipher) {
+        computeIfAbsent(userId, k -> new HashMap<>()).put(clientId, cipher);
+    }
+
+    public void add(RawRecipients recipients) {
+        recipients.forEach((userId, clients) -> computeIfAbsent(userId, k -> new HashMap<>()).putAll(clients));
+    }
+
+    /**
+     * @return Number of devices (clients) holding a cipher
+     */
+    public int count() {
+        int ret = 0;
+        for (Map<String, byte[]> clients : values()) {
+            ret += clients.size();
+        }
+        return ret;
+    }
+
+    /**
+     * @return Base64 encoded ciphers as they are sent in the JSON body
+     */
+    public Recipients toRecipients() {
+        Recipients ret = new Recipients();
+        forEach((userId, clients) -> clients.forEach((clientId, cipher) ->
+                ret.add(userId, clientId, Base64.getEncoder().encodeToString(cipher))));
+        return ret;
+    }
+}
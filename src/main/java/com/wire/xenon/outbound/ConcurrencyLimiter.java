@@ -0,0 +1,59 @@
+package com.wire.xenon.outbound;
+
+/**
+ * Adaptive limit of concurrent calls to the Backend (AIMD).
+ *
+ * <p>
+ *     Every successful call raises the limit by {@code 1/limit}, so roughly by one per round of calls. A throttled
+ *     call (429, 503) halves it. This way the number of concurrent calls made by this node keeps close to what the
+ *     Backend is able to take.
+ * </p>
+ */
+public class ConcurrencyLimiter {
+    private final double min;
+    private final double max;
+    private double limit;
+    private int inFlight;
+
+    /**
+     * @param initial Initial limit
+     * @param min     The limit never drops below this value
+     * @param max     The limit never grows above this value
+     */
+    public ConcurrencyLimiter(int initial, int min, int max) {
+        this.limit = initial;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Blocks until the number of calls in flight is below the limit
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    /**
+     * @param throttled TRUE if the Backend rejected the call because of the rate limit
+     */
+    public synchronized void release(boolean throttled) {
+        inFlight--;
+        if (throttled) {
+            limit = Math.max(min, limit / 2);
+        } else {
+            limit = Math.min(max, limit + 1 / limit);
+        }
+        notifyAll();
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+}
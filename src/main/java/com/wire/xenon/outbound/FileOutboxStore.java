@@ -0,0 +1,222 @@
+package com.wire.xenon.outbound;
+
+import com.wire.xenon.backend.models.QualifiedId;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * File backed {@link OutboxStore}: an append only log of added and removed messages.
+ *
+ * <p>
+ *     A batch of added messages is written with one write and made durable with one fsync. Removals are not
+ *     synced: if they are lost in a crash the messages are replayed once more, which the at-least-once delivery
+ *     allows. A record torn by a crash is cut off when the log is opened. The log is compacted when it holds
+ *     mostly removed messages.
+ * </p>
+ */
+public class FileOutboxStore implements OutboxStore, Closeable {
+    private static final String FILENAME = "outbox.log";
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final int COMPACT_THRESHOLD = 1024;
+    private static final int MAX_PAYLOAD = 64 * 1024 * 1024;
+
+    private final Path file;
+    private final LinkedHashMap<UUID, OutboxEntry> pending = new LinkedHashMap<>();
+    private FileChannel channel;
+    private int removed;
+
+    /**
+     * @param path Directory the log is kept in
+     */
+    public FileOutboxStore(String path) throws IOException {
+        Files.createDirectories(Paths.get(path));
+        this.file = Paths.get(path, FILENAME);
+        long valid = load();
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(valid);
+        channel.position(valid);
+    }
+
+    @Override
+    public synchronized void add(List<OutboxEntry> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (OutboxEntry entry : entries) {
+            if (pending.containsKey(entry.messageId))
+                continue;
+            writeAdd(out, entry);
+            pending.put(entry.messageId, entry);
+        }
+        write(bytes.toByteArray());
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void remove(Collection<UUID> messageIds) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (UUID messageId : messageIds) {
+            if (pending.remove(messageId) == null)
+                continue;
+            out.writeByte(REMOVE);
+            writeUUID(out, messageId);
+            removed++;
+        }
+        write(bytes.toByteArray());
+
+        if (removed > COMPACT_THRESHOLD && removed > pending.size()) {
+            compact();
+        }
+    }
+
+    @Override
+    public synchronized List<OutboxEntry> pending() {
+        return new ArrayList<>(pending.values());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Rewrites the log with only the pending messages
+     */
+    private void compact() throws IOException {
+        Path tmp = file.resolveSibling(FILENAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            for (OutboxEntry entry : pending.values()) {
+                writeAdd(out, entry);
+            }
+        }
+        try (FileChannel tmpChannel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            tmpChannel.force(true);
+        }
+        channel.close();
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        removed = 0;
+    }
+
+    /**
+     * Reads the log
+     *
+     * @return Length of the valid part of the log
+     */
+    private long load() throws IOException {
+        if (!Files.exists(file))
+            return 0;
+
+        long valid = 0;
+        try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(Files.newInputStream(file)));
+             DataInputStream in = new DataInputStream(counter)) {
+            while (true) {
+                int type = in.read();
+                if (type == -1)
+                    break;
+                if (type == ADD) {
+                    OutboxEntry entry = readAdd(in);
+                    pending.put(entry.messageId, entry);
+                } else if (type == REMOVE) {
+                    pending.remove(readUUID(in));
+                    removed++;
+                } else {
+                    break;
+                }
+                valid = counter.count;
+            }
+        } catch (EOFException e) {
+            // torn record at the end of the log
+        }
+        return valid;
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void writeAdd(DataOutputStream out, OutboxEntry entry) throws IOException {
+        out.writeByte(ADD);
+        writeUUID(out, entry.messageId);
+        writeUUID(out, entry.botId);
+        out.writeBoolean(entry.userId != null);
+        if (entry.userId != null) {
+            writeUUID(out, entry.userId.id);
+            out.writeUTF(entry.userId.domain != null ? entry.userId.domain : "");
+        }
+        out.writeLong(entry.created);
+        out.writeInt(entry.payload.length);
+        out.write(entry.payload);
+    }
+
+    private static OutboxEntry readAdd(DataInputStream in) throws IOException {
+        OutboxEntry entry = new OutboxEntry();
+        entry.messageId = readUUID(in);
+        entry.botId = readUUID(in);
+        if (in.readBoolean()) {
+            UUID id = readUUID(in);
+            String domain = in.readUTF();
+            entry.userId = new QualifiedId(id, domain.isEmpty() ? null : domain);
+        }
+        entry.created = in.readLong();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PAYLOAD)
+            throw new EOFException("Invalid payload length: " + length);
+        entry.payload = new byte[length];
+        in.readFully(entry.payload);
+        return entry;
+    }
+
+    private static void writeUUID(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID readUUID(DataInputStream in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int ret = super.read();
+            if (ret != -1)
+                count++;
+            return ret;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int ret = super.read(b, off, len);
+            if (ret > 0)
+                count += ret;
+            return ret;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long ret = super.skip(n);
+            count += ret;
+            return ret;
+        }
+    }
+}
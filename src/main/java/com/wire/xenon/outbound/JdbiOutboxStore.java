@@ -0,0 +1,48 @@
+package com.wire.xenon.outbound;
+
+import org.jdbi.v3.core.Jdbi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Postgres backed {@link OutboxStore}. Every batch is inserted (deleted) in one transaction.
+ */
+public class JdbiOutboxStore implements OutboxStore {
+    private final OutboxDAO outboxDAO;
+
+    public JdbiOutboxStore(Jdbi jdbi) {
+        this.outboxDAO = jdbi.onDemand(OutboxDAO.class);
+    }
+
+    @Override
+    public void add(List<OutboxEntry> entries) {
+        List<UUID> messageIds = new ArrayList<>(entries.size());
+        List<UUID> botIds = new ArrayList<>(entries.size());
+        List<UUID> userIds = new ArrayList<>(entries.size());
+        List<String> domains = new ArrayList<>(entries.size());
+        List<byte[]> payloads = new ArrayList<>(entries.size());
+        List<Long> created = new ArrayList<>(entries.size());
+        for (OutboxEntry entry : entries) {
+            messageIds.add(entry.messageId);
+            botIds.add(entry.botId);
+            userIds.add(entry.userId != null ? entry.userId.id : null);
+            domains.add(entry.userId != null ? entry.userId.domain : null);
+            payloads.add(entry.payload);
+            created.add(entry.created);
+        }
+        outboxDAO.insert(messageIds, botIds, userIds, domains, payloads, created);
+    }
+
+    @Override
+    public void remove(Collection<UUID> messageIds) {
+        outboxDAO.delete(messageIds);
+    }
+
+    @Override
+    public List<OutboxEntry> pending() {
+        return outboxDAO.get();
+    }
+}
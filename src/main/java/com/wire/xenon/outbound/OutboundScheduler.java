@@ -0,0 +1,346 @@
+package com.wire.xenon.outbound;
+
+import com.wire.xenon.WireClient;
+import com.wire.xenon.assets.IGeneric;
+import com.wire.xenon.backend.models.QualifiedId;
+import com.wire.xenon.models.SendReport;
+import com.wire.xenon.tools.Logger;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rate limiting scheduler in front of {@link WireClient#sendAsync}.
+ *
+ * <p>
+ *     Every conversation of a bot and every bot has its own token bucket and a message is sent only when both have a
+ *     token. Queued messages are kept in priority lanes that share the dispatching by weight (8:2:1), so interactive
+ *     replies are not queued behind bulk traffic while bulk traffic and receipts still get their share. Within a lane
+ *     the messages of one conversation keep their order, while a conversation that ran out of tokens waits aside and
+ *     doesn't hold back the others.
+ * </p>
+ */
+public class OutboundScheduler implements Closeable {
+    private static final long PURGE_INTERVAL = TimeUnit.SECONDS.toNanos(60);
+
+    private final EnumMap<Priority, Lane> lanes = new EnumMap<>(Priority.class);
+    private final HashMap<Key, TokenBucket> conversationBuckets = new HashMap<>();
+    private final HashMap<UUID, TokenBucket> botBuckets = new HashMap<>();
+    private final AtomicLong dispatched = new AtomicLong();
+    private final double conversationRate;
+    private final int conversationBurst;
+    private final double botRate;
+    private final int botBurst;
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+    private long purged = System.nanoTime();
+
+    /**
+     * @param conversationRate  Messages per second allowed for one bot into one conversation
+     * @param conversationBurst Messages that can be sent by one bot into one conversation at once
+     * @param botRate           Messages per second allowed for one bot (over all its conversations)
+     * @param botBurst          Messages that can be sent by one bot at once
+     */
+    public OutboundScheduler(double conversationRate, int conversationBurst, double botRate, int botBurst) {
+        this.conversationRate = conversationRate;
+        this.conversationBurst = conversationBurst;
+        this.botRate = botRate;
+        this.botBurst = botBurst;
+        for (Priority priority : Priority.values()) {
+            lanes.put(priority, new Lane(priority.weight));
+        }
+        dispatcher = new Thread(this::dispatch, "xenon-scheduler");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Queues the message to be sent into the client's conversation
+     *
+     * @param client   Client of the bot in the conversation
+     * @param message  Message to be sent
+     * @param priority Lane
+     * @return Future completed when the message is sent
+     */
+    public CompletableFuture<SendReport> submit(WireClient client, IGeneric message, Priority priority) {
+        return submit(client, message, null, priority);
+    }
+
+    /**
+     * Queues the message to be sent to a specific user in the client's conversation
+     *
+     * @param client   Client of the bot in the conversation
+     * @param message  Message to be sent
+     * @param userId   The only user to send the message to. Null means everybody in the conversation
+     * @param priority Lane
+     * @return Future completed when the message is sent
+     */
+    public CompletableFuture<SendReport> submit(WireClient client, IGeneric message, QualifiedId userId,
+                                                Priority priority) {
+        if (!running)
+            return CompletableFuture.failedFuture(new IllegalStateException("OutboundScheduler is closed"));
+
+        Task task = new Task(client, message, userId);
+        Key key = new Key(client.getId(), client.getConversationId());
+        synchronized (lanes) {
+            Lane lane = lanes.get(priority);
+            Flow flow = lane.flows.get(key);
+            if (flow == null) {
+                flow = new Flow(key);
+                lane.flows.put(key, flow);
+                lane.ready.add(flow);
+            }
+            flow.tasks.add(task);
+            lane.size++;
+            lanes.notifyAll();
+        }
+        return task.future;
+    }
+
+    /**
+     * @return Number of messages waiting in the lane
+     */
+    public int getQueueDepth(Priority priority) {
+        synchronized (lanes) {
+            return lanes.get(priority).size;
+        }
+    }
+
+    /**
+     * @return Number of messages waiting per lane
+     */
+    public Map<Priority, Integer> getQueueDepths() {
+        EnumMap<Priority, Integer> ret = new EnumMap<>(Priority.class);
+        synchronized (lanes) {
+            lanes.forEach((priority, lane) -> ret.put(priority, lane.size));
+        }
+        return ret;
+    }
+
+    /**
+     * @return Number of messages handed over to the clients since this scheduler was created
+     */
+    public long getDispatched() {
+        return dispatched.get();
+    }
+
+    /**
+     * Stops the dispatching. The messages still waiting are failed
+     */
+    @Override
+    public void close() {
+        running = false;
+        dispatcher.interrupt();
+        synchronized (lanes) {
+            for (Lane lane : lanes.values()) {
+                for (Flow flow : lane.flows.values()) {
+                    for (Task task : flow.tasks) {
+                        task.future.completeExceptionally(new IllegalStateException("OutboundScheduler is closed"));
+                    }
+                }
+                lane.flows.clear();
+                lane.ready.clear();
+                lane.delayed.clear();
+                lane.size = 0;
+            }
+        }
+    }
+
+    private void dispatch() {
+        while (running) {
+            Task task;
+            try {
+                task = next();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            dispatched.incrementAndGet();
+            try {
+                CompletableFuture<SendReport> sent = task.userId == null
+                        ? task.client.sendAsync(task.message)
+                        : task.client.sendAsync(task.message, task.userId);
+                sent.whenComplete((report, e) -> {
+                    if (e != null)
+                        task.future.completeExceptionally(e);
+                    else
+                        task.future.complete(report);
+                });
+            } catch (Exception e) {
+                Logger.exception(e, "OutboundScheduler: failed to dispatch message %s", task.message.getMessageId());
+                task.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Blocks until there is a message that can be sent and takes the tokens for it.
+     *
+     * <p>
+     *     Only the conversations at the head of the ready queues are looked at: a conversation out of tokens is moved
+     *     to the delayed queue of its lane until its tokens are refilled. Among the lanes with a conversation ready
+     *     one is picked by smooth weighted round robin.
+     * </p>
+     */
+    private Task next() throws InterruptedException {
+        synchronized (lanes) {
+            while (true) {
+                long now = System.nanoTime();
+                purge(now);
+
+                long wait = Long.MAX_VALUE;
+                Lane chosen = null;
+                int weights = 0;
+                for (Lane lane : lanes.values()) {
+                    while (!lane.delayed.isEmpty() && lane.delayed.peek().readyAt <= now) {
+                        lane.ready.add(lane.delayed.poll());
+                    }
+                    Flow head;
+                    while ((head = lane.ready.peek()) != null) {
+                        long flowWait = waitTime(head.key, now);
+                        if (flowWait == 0)
+                            break;
+                        lane.ready.poll();
+                        head.readyAt = now + flowWait;
+                        lane.delayed.add(head);
+                    }
+                    if (!lane.delayed.isEmpty())
+                        wait = Math.min(wait, lane.delayed.peek().readyAt - now);
+                    if (head != null) {
+                        lane.current += lane.weight;
+                        weights += lane.weight;
+                        if (chosen == null || lane.current > chosen.current)
+                            chosen = lane;
+                    }
+                }
+
+                if (chosen != null) {
+                    chosen.current -= weights;
+                    return take(chosen);
+                }
+
+                if (wait == Long.MAX_VALUE)
+                    lanes.wait();
+                else
+                    TimeUnit.NANOSECONDS.timedWait(lanes, Math.max(1, wait));
+            }
+        }
+    }
+
+    private Task take(Lane lane) {
+        Flow flow = lane.ready.poll();
+        conversationBuckets.get(flow.key).take();
+        botBuckets.get(flow.key.botId).take();
+        Task task = flow.tasks.poll();
+        lane.size--;
+        // round robin between the conversations of the lane
+        if (flow.tasks.isEmpty())
+            lane.flows.remove(flow.key);
+        else
+            lane.ready.add(flow);
+        return task;
+    }
+
+    private long waitTime(Key key, long now) {
+        TokenBucket conversation = conversationBuckets.computeIfAbsent(key,
+                k -> new TokenBucket(conversationRate, conversationBurst, now));
+        TokenBucket bot = botBuckets.computeIfAbsent(key.botId, k -> new TokenBucket(botRate, botBurst, now));
+        return Math.max(conversation.waitTime(now), bot.waitTime(now));
+    }
+
+    /**
+     * Drops the buckets that are full: they are the same as new ones
+     */
+    private void purge(long now) {
+        if (now - purged < PURGE_INTERVAL)
+            return;
+        purged = now;
+        conversationBuckets.values().removeIf(bucket -> bucket.isFull(now));
+        botBuckets.values().removeIf(bucket -> bucket.isFull(now));
+    }
+
+    /**
+     * Lanes in order of precedence
+     */
+    public enum Priority {
+        INTERACTIVE(8),
+        BULK(2),
+        RECEIPTS(1);
+
+        // share of the dispatching when all the lanes have messages ready
+        private final int weight;
+
+        Priority(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    private static class Lane {
+        private final int weight;
+        private final HashMap<Key, Flow> flows = new HashMap<>();
+        // conversations that had tokens when last looked at
+        private final ArrayDeque<Flow> ready = new ArrayDeque<>();
+        // conversations out of tokens, by the time they get one
+        private final PriorityQueue<Flow> delayed = new PriorityQueue<>(Comparator.comparingLong(f -> f.readyAt));
+        private int current;
+        private int size;
+
+        Lane(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Messages of one conversation of a bot waiting in one lane
+     */
+    private static class Flow {
+        private final Key key;
+        private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+        private long readyAt;
+
+        Flow(Key key) {
+            this.key = key;
+        }
+    }
+
+    private static class Key {
+        private final UUID botId;
+        private final QualifiedId conversationId;
+
+        Key(UUID botId, QualifiedId conversationId) {
+            this.botId = botId;
+            this.conversationId = conversationId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return botId.equals(key.botId) && Objects.equals(conversationId, key.conversationId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(botId, conversationId);
+        }
+    }
+
+    private static class Task {
+        private final WireClient client;
+        private final IGeneric message;
+        private final QualifiedId userId;
+        private final CompletableFuture<SendReport> future = new CompletableFuture<>();
+
+        Task(WireClient client, IGeneric message, QualifiedId userId) {
+            this.client = client;
+            this.message = message;
+            this.userId = userId;
+        }
+    }
+}
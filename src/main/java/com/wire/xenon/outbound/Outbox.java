@@ -0,0 +1,339 @@
+package com.wire.xenon.outbound;
+
+import com.waz.model.Messages;
+import com.wire.xenon.WireClient;
+import com.wire.xenon.assets.IGeneric;
+import com.wire.xenon.backend.models.QualifiedId;
+import com.wire.xenon.exceptions.HttpException;
+import com.wire.xenon.models.SendReport;
+import com.wire.xenon.tools.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Durable outbox in front of {@link WireClient#sendAsync}.
+ *
+ * <p>
+ *     Messages are serialized and persisted before they are sent, and removed from the store once the Backend
+ *     accepted them. Messages that are still in the store when the process starts are sent again by
+ *     {@link #replay}, so the delivery is at-least-once (the receiving clients drop duplicates by message id).
+ *     A single thread persists whatever was submitted since its last write as one batch (group commit), so the
+ *     cost of the fsync/commit is shared by all the messages in the batch and the callers never wait for http.
+ *     A send that failed transiently is retried in the background with a randomized exponential backoff, only
+ *     when the retries are exhausted the message is left for the replay. Closing the outbox waits for the sends
+ *     in flight, so the messages they deliver are not sent again by the replay.
+ * </p>
+ */
+public class Outbox implements Closeable {
+    private static final long REMOVE_INTERVAL = 100;
+    private static final long CLOSE_TIMEOUT = 30_000;
+
+    private final OutboxStore store;
+    private final int maxBatch;
+    private final int maxRetries;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final ConcurrentLinkedQueue<UUID> delivered = new ConcurrentLinkedQueue<>();
+    private final Set<CompletableFuture<Void>> inFlight = ConcurrentHashMap.newKeySet();
+    private final Set<Pending> retrying = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService retries;
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    /**
+     * @param store    Where the messages are persisted
+     * @param maxBatch Maximal number of messages persisted at once
+     */
+    public Outbox(OutboxStore store, int maxBatch) {
+        this(store, maxBatch, 5, Duration.ofSeconds(1), Duration.ofMinutes(1));
+    }
+
+    /**
+     * @param store      Where the messages are persisted
+     * @param maxBatch   Maximal number of messages persisted at once
+     * @param maxRetries Number of times a failed send is retried before the message is left for the replay
+     * @param baseDelay  Delay before the first retry. Doubled for each next retry
+     * @param maxDelay   Upper bound of the delay
+     */
+    public Outbox(OutboxStore store, int maxBatch, int maxRetries, Duration baseDelay, Duration maxDelay) {
+        this.store = store;
+        this.maxBatch = maxBatch;
+        this.maxRetries = maxRetries;
+        this.baseDelay = baseDelay.toMillis();
+        this.maxDelay = maxDelay.toMillis();
+        retries = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "xenon-outbox-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher = new Thread(this::flush, "xenon-outbox");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Persists the message and sends it into the client's conversation
+     *
+     * @return Future completed when the message is sent. If it fails after the retries the message stays in the store
+     */
+    public CompletableFuture<SendReport> send(WireClient client, IGeneric message) {
+        return send(client, message, null);
+    }
+
+    /**
+     * Persists the message and sends it to a specific user in the client's conversation
+     *
+     * @param userId The only user to send the message to. Null means everybody in the conversation
+     * @return Future completed when the message is sent. If it fails after the retries the message stays in the store
+     */
+    public CompletableFuture<SendReport> send(WireClient client, IGeneric message, QualifiedId userId) {
+        if (!running)
+            return CompletableFuture.failedFuture(new IllegalStateException("Outbox is closed"));
+
+        Messages.GenericMessage generic;
+        try {
+            generic = message.createGenericMsg();
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        OutboxEntry entry = new OutboxEntry();
+        entry.messageId = message.getMessageId();
+        entry.botId = client.getId();
+        entry.userId = userId;
+        entry.payload = generic.toByteArray();
+        entry.created = System.currentTimeMillis();
+
+        Pending pending = new Pending(client, entry, new OutboxMessage(entry.messageId, generic));
+        queue.add(pending);
+        return pending.future;
+    }
+
+    /**
+     * Sends again the messages that were persisted but not delivered, by a previous run of this process for example.
+     *
+     * @param resolver Provides the client for the bot that sent the message
+     * @return Number of messages resent
+     */
+    public int replay(ClientResolver resolver) throws IOException {
+        int ret = 0;
+        for (OutboxEntry entry : store.pending()) {
+            Messages.GenericMessage generic;
+            try {
+                generic = Messages.GenericMessage.parseFrom(entry.payload);
+            } catch (IOException e) {
+                Logger.exception(e, "Outbox: dropping unreadable message %s", entry.messageId);
+                delivered.add(entry.messageId);
+                continue;
+            }
+
+            WireClient client;
+            try {
+                client = resolver.getClient(entry.botId);
+            } catch (Exception e) {
+                Logger.exception(e, "Outbox: failed to get client for bot %s", entry.botId);
+                continue;
+            }
+            if (client == null) {
+                Logger.warning("Outbox: no client for bot %s, message %s is kept", entry.botId, entry.messageId);
+                continue;
+            }
+
+            deliver(new Pending(client, entry, new OutboxMessage(entry.messageId, generic)));
+            ret++;
+        }
+        return ret;
+    }
+
+    /**
+     * @return Number of messages submitted and not yet persisted
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Stops persisting and retrying. Waits for the sends in flight, the messages still waiting for a retry stay in the
+     * store for the replay
+     */
+    @Override
+    public void close() {
+        // not interrupted: an interrupt would close the FileChannel of a FileOutboxStore in the middle of a write
+        running = false;
+        try {
+            flusher.join();
+            retries.shutdownNow();
+            retries.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+            CompletableFuture.allOf(inFlight.toArray(new CompletableFuture<?>[0]))
+                    .get(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            Logger.warning("Outbox: %d messages still in flight, they will be replayed", inFlight.size());
+        } catch (Exception e) {
+            if (e instanceof InterruptedException)
+                Thread.currentThread().interrupt();
+            Logger.exception(e, "Outbox: failed to wait for the messages in flight");
+        }
+        removeDelivered();
+
+        for (Pending pending : retrying) {
+            pending.future.completeExceptionally(new IllegalStateException("Outbox is closed"));
+        }
+
+        Pending pending;
+        while ((pending = queue.poll()) != null) {
+            pending.future.completeExceptionally(new IllegalStateException("Outbox is closed"));
+        }
+    }
+
+    private void flush() {
+        while (running) {
+            List<Pending> batch = new ArrayList<>();
+            try {
+                Pending first = queue.poll(REMOVE_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, maxBatch - 1);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            removeDelivered();
+            if (batch.isEmpty())
+                continue;
+
+            List<OutboxEntry> entries = new ArrayList<>(batch.size());
+            for (Pending pending : batch) {
+                entries.add(pending.entry);
+            }
+            try {
+                store.add(entries);
+            } catch (Exception e) {
+                Logger.exception(e, "Outbox: failed to persist %d messages", entries.size());
+                batch.forEach(pending -> pending.future.completeExceptionally(e));
+                continue;
+            }
+
+            batch.forEach(this::deliver);
+        }
+    }
+
+    private void deliver(Pending pending) {
+        OutboxEntry entry = pending.entry;
+        CompletableFuture<SendReport> sent;
+        try {
+            sent = entry.userId == null
+                    ? pending.client.sendAsync(pending.message)
+                    : pending.client.sendAsync(pending.message, entry.userId);
+        } catch (Exception e) {
+            sent = CompletableFuture.failedFuture(e);
+        }
+
+        CompletableFuture<Void> done = sent.handle((report, e) -> {
+            onSent(pending, report, e);
+            return null;
+        });
+        inFlight.add(done);
+        done.whenComplete((v, e) -> inFlight.remove(done));
+    }
+
+    private void onSent(Pending pending, SendReport report, Throwable e) {
+        UUID messageId = pending.entry.messageId;
+        if (e == null) {
+            delivered.add(messageId);
+            pending.future.complete(report);
+            return;
+        }
+
+        if (isRejected(e)) {
+            Logger.exception(e, "Outbox: message %s rejected by the Backend", messageId);
+            delivered.add(messageId);
+        } else if (running && pending.attempt < maxRetries) {
+            long delay = ThreadLocalRandom.current().nextLong(
+                    Math.min(maxDelay, baseDelay << Math.min(pending.attempt, 30)) + 1);
+            Logger.warning("Outbox: failed to send message %s: %s. Retrying in %d ms", messageId, e, delay);
+            pending.attempt++;
+            retrying.add(pending);
+            try {
+                retries.schedule(() -> {
+                    retrying.remove(pending);
+                    deliver(pending);
+                }, delay, TimeUnit.MILLISECONDS);
+                return;
+            } catch (RejectedExecutionException closed) {
+                retrying.remove(pending);
+            }
+        } else {
+            Logger.exception(e, "Outbox: failed to send message %s, it is kept for replay", messageId);
+        }
+        pending.future.completeExceptionally(e);
+    }
+
+    private void removeDelivered() {
+        List<UUID> messageIds = new ArrayList<>();
+        UUID messageId;
+        while ((messageId = delivered.poll()) != null) {
+            messageIds.add(messageId);
+        }
+        if (messageIds.isEmpty())
+            return;
+
+        try {
+            store.remove(messageIds);
+        } catch (Exception e) {
+            // the messages will be replayed once more
+            Logger.exception(e, "Outbox: failed to remove %d messages", messageIds.size());
+        }
+    }
+
+    /**
+     * @return TRUE if the Backend refused the message for good (4xx other than 429), so there is no point in resending
+     */
+    private static boolean isRejected(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof HttpException) {
+                int code = ((HttpException) t).getCode();
+                return code >= 400 && code < 500 && code != 429;
+            }
+        }
+        return false;
+    }
+
+    public interface ClientResolver {
+        /**
+         * @return Client of the bot or null if the bot is gone
+         */
+        WireClient getClient(UUID botId) throws Exception;
+    }
+
+    private static class Pending {
+        private final WireClient client;
+        private final OutboxEntry entry;
+        private final IGeneric message;
+        private final CompletableFuture<SendReport> future = new CompletableFuture<>();
+        private int attempt;
+
+        Pending(WireClient client, OutboxEntry entry, IGeneric message) {
+            this.client = client;
+            this.entry = entry;
+            this.message = message;
+        }
+    }
+}
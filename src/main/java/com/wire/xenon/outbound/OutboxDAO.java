@@ -0,0 +1,49 @@
+package com.wire.xenon.outbound;
+
+import com.wire.xenon.backend.models.QualifiedId;
+import org.jdbi.v3.core.mapper.ColumnMapper;
+import org.jdbi.v3.core.statement.StatementContext;
+import org.jdbi.v3.sqlobject.config.RegisterColumnMapper;
+import org.jdbi.v3.sqlobject.customizer.Bind;
+import org.jdbi.v3.sqlobject.statement.SqlBatch;
+import org.jdbi.v3.sqlobject.statement.SqlQuery;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+public interface OutboxDAO {
+    @SqlBatch("INSERT INTO Outbox (messageId, botId, userId, domain, payload, created) " +
+            "VALUES (:messageId, :botId, :userId, :domain, :payload, :created) " +
+            "ON CONFLICT (messageId) DO NOTHING")
+    int[] insert(@Bind("messageId") List<UUID> messageIds,
+                 @Bind("botId") List<UUID> botIds,
+                 @Bind("userId") List<UUID> userIds,
+                 @Bind("domain") List<String> domains,
+                 @Bind("payload") List<byte[]> payloads,
+                 @Bind("created") List<Long> created);
+
+    @SqlBatch("DELETE FROM Outbox WHERE messageId = :messageId")
+    int[] delete(@Bind("messageId") Collection<UUID> messageIds);
+
+    @SqlQuery("SELECT * FROM Outbox ORDER BY created")
+    @RegisterColumnMapper(_Mapper.class)
+    List<OutboxEntry> get();
+
+    class _Mapper implements ColumnMapper<OutboxEntry> {
+        @Override
+        public OutboxEntry map(ResultSet r, int columnNumber, StatementContext ctx) throws SQLException {
+            OutboxEntry entry = new OutboxEntry();
+            entry.messageId = (UUID) r.getObject("messageId");
+            entry.botId = (UUID) r.getObject("botId");
+            UUID userId = (UUID) r.getObject("userId");
+            if (userId != null)
+                entry.userId = new QualifiedId(userId, r.getString("domain"));
+            entry.payload = r.getBytes("payload");
+            entry.created = r.getLong("created");
+            return entry;
+        }
+    }
+}
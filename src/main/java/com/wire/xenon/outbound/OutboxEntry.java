@@ -0,0 +1,18 @@
+package com.wire.xenon.outbound;
+
+import com.wire.xenon.backend.models.QualifiedId;
+
+import java.util.UUID;
+
+/**
+ * Message persisted in the {@link Outbox}
+ */
+public class OutboxEntry {
+    public UUID messageId;
+    public UUID botId;
+    // null means everybody in the conversation
+    public QualifiedId userId;
+    // Serialized GenericMessage
+    public byte[] payload;
+    public long created;
+}
@@ -0,0 +1,29 @@
+package com.wire.xenon.outbound;
+
+import com.waz.model.Messages;
+import com.wire.xenon.assets.IGeneric;
+
+import java.util.UUID;
+
+/**
+ * Message already serialized by the {@link Outbox}. It is sent exactly as it was persisted
+ */
+class OutboxMessage implements IGeneric {
+    private final UUID messageId;
+    private final Messages.GenericMessage message;
+
+    OutboxMessage(UUID messageId, Messages.GenericMessage message) {
+        this.messageId = messageId;
+        this.message = message;
+    }
+
+    @Override
+    public Messages.GenericMessage createGenericMsg() {
+        return message;
+    }
+
+    @Override
+    public UUID getMessageId() {
+        return messageId;
+    }
+}
@@ -0,0 +1,23 @@
+package com.wire.xenon.outbound;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Persistence of the {@link Outbox}. Every call handles a whole batch so the implementations can commit it at once.
+ */
+public interface OutboxStore {
+    /**
+     * Stores the entries durably. Entries with a message id that is already stored are ignored
+     */
+    void add(List<OutboxEntry> entries) throws IOException;
+
+    void remove(Collection<UUID> messageIds) throws IOException;
+
+    /**
+     * @return Entries that were added and not removed, oldest first
+     */
+    List<OutboxEntry> pending() throws IOException;
+}
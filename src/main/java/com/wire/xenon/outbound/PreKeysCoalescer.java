@@ -0,0 +1,124 @@
+package com.wire.xenon.outbound;
+
+import com.wire.xenon.backend.models.QualifiedId;
+import com.wire.xenon.crypto.Crypto;
+import com.wire.xenon.models.otr.Missing;
+import com.wire.xenon.models.otr.PreKeys;
+import com.wire.xenon.models.otr.RawRecipients;
+import com.wire.xenon.tools.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Coalesces the prekey fallback of concurrent sends.
+ *
+ * <p>
+ *     When a new device appears in a conversation every message sent at that moment is rejected with the same
+ *     missing device. Only the first send fetches the prekeys and creates the session for that device, the others
+ *     wait for it and then encrypt from the new session. This saves one-time prekeys and http calls and avoids
+ *     creating several competing sessions with the same device.
+ * </p>
+ */
+public class PreKeysCoalescer {
+    private static final PreKeysCoalescer DEFAULT = new PreKeysCoalescer();
+
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * @return Process wide instance used by the WireClients by default
+     */
+    public static PreKeysCoalescer getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Encrypt the content for the missing devices, establishing the sessions where needed.
+     *
+     * @param owner   Id of the crypto box owning the sessions (bot id)
+     * @param crypto  Crypto box of the owner
+     * @param missing Devices that are missing in the message
+     * @param content Plain text content to be encrypted
+     * @param fetcher Fetches the prekeys from the Backend
+     * @return Ciphers for the missing devices. Devices without a session or a prekey are skipped
+     */
+    public RawRecipients encrypt(UUID owner, Crypto crypto, Missing missing, byte[] content, Fetcher fetcher)
+            throws Exception {
+        // Sessions could have been established by another send since this message was encrypted
+        RawRecipients ret = crypto.encryptRaw(missing, content);
+
+        Missing claimed = new Missing();
+        Missing awaited = new Missing();
+        Map<String, CompletableFuture<Void>> mine = new HashMap<>();
+        List<CompletableFuture<Void>> others = new ArrayList<>();
+        for (QualifiedId userId : missing.toUserIds()) {
+            for (String clientId : missing.toClients(userId)) {
+                if (ret.contains(userId, clientId))
+                    continue;
+
+                String key = String.format("%s_%s_%s", owner, userId, clientId);
+                CompletableFuture<Void> future = new CompletableFuture<>();
+                CompletableFuture<Void> other = pending.putIfAbsent(key, future);
+                if (other == null) {
+                    mine.put(key, future);
+                    claimed.add(userId, clientId);
+                } else {
+                    others.add(other);
+                    awaited.add(userId, clientId);
+                }
+            }
+        }
+
+        try {
+            if (!claimed.isEmpty()) {
+                ret.add(fromPreKeys(owner, crypto, claimed, content, fetcher));
+            }
+            mine.values().forEach(future -> future.complete(null));
+        } catch (Exception e) {
+            mine.values().forEach(future -> future.completeExceptionally(e));
+            throw e;
+        } finally {
+            mine.forEach(pending::remove);
+        }
+
+        if (!awaited.isEmpty()) {
+            for (CompletableFuture<Void> other : others) {
+                // failures are handled below, the device simply won't have the session
+                other.handle((r, e) -> null).join();
+            }
+
+            RawRecipients fromSession = crypto.encryptRaw(awaited, content);
+            ret.add(fromSession);
+
+            Missing failed = new Missing();
+            for (QualifiedId userId : awaited.toUserIds()) {
+                for (String clientId : awaited.toClients(userId)) {
+                    if (!fromSession.contains(userId, clientId))
+                        failed.add(userId, clientId);
+                }
+            }
+            if (!failed.isEmpty()) {
+                ret.add(fromPreKeys(owner, crypto, failed, content, fetcher));
+            }
+        }
+        return ret;
+    }
+
+    private static RawRecipients fromPreKeys(UUID owner, Crypto crypto, Missing missing, byte[] content, Fetcher fetcher)
+            throws Exception {
+        PreKeys preKeys = fetcher.fetch(missing);
+
+        Logger.debug("Fetched %d preKeys for %d devices. Bot: %s", preKeys.count(), missing.count(), owner);
+
+        return crypto.encryptRaw(preKeys, content);
+    }
+
+    public interface Fetcher {
+        PreKeys fetch(Missing missing) throws Exception;
+    }
+}
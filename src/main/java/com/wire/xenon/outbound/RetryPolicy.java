@@ -0,0 +1,128 @@
+package com.wire.xenon.outbound;
+
+import com.wire.xenon.exceptions.HttpException;
+import com.wire.xenon.tools.Logger;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retries the calls to the Backend that failed because of throttling or a transient error.
+ *
+ * <p>
+ *     The delay between the attempts grows exponentially and is randomized (full jitter) so that the clients that
+ *     were throttled at the same time don't come back at the same time. If the Backend sent Retry-After that value
+ *     is used instead, unless it is longer than {@code maxDelay}: then the call fails right away rather than
+ *     stalling the sender. All the attempts go through the {@link ConcurrencyLimiter}.
+ * </p>
+ */
+public class RetryPolicy {
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final ConcurrencyLimiter limiter;
+
+    /**
+     * @param maxAttempts Total number of attempts, including the first one
+     * @param baseDelay   Delay before the second attempt. Doubled for each next attempt
+     * @param maxDelay    Upper bound of the delay
+     * @param limiter     Limits the concurrent calls. Can be null
+     */
+    public RetryPolicy(int maxAttempts, Duration baseDelay, Duration maxDelay, ConcurrencyLimiter limiter) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay.toMillis();
+        this.maxDelay = maxDelay.toMillis();
+        this.limiter = limiter;
+    }
+
+    /**
+     * @return Process wide instance used by the WireClients by default
+     */
+    public static RetryPolicy getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    public ConcurrencyLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Runs the call, retrying it when it fails with 429, 5xx or an IOException
+     *
+     * @param call Call to the Backend
+     * @return Result of the first successful attempt
+     * @throws Exception the failure of the last attempt, or the first failure that can't be retried or asks to
+     *                   wait longer than the max delay
+     */
+    public <T> T call(Call<T> call) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            if (limiter != null)
+                limiter.acquire();
+
+            Exception failure = null;
+            try {
+                return call.call();
+            } catch (Exception e) {
+                failure = e;
+                if (attempt >= maxAttempts || !isRetryable(e))
+                    throw e;
+            } finally {
+                if (limiter != null)
+                    limiter.release(isThrottled(failure));
+            }
+
+            long delay = delay(attempt, failure);
+            if (delay > maxDelay) {
+                Logger.warning("RetryPolicy: Retry-After %d ms exceeds the max delay, giving up", delay);
+                throw failure;
+            }
+            Logger.warning("RetryPolicy: attempt %d failed: %s. Retrying in %d ms", attempt, failure, delay);
+            Thread.sleep(delay);
+        }
+    }
+
+    private long delay(int attempt, Exception failure) {
+        HttpException http = httpException(failure);
+        if (http != null && http.getRetryAfter() > 0)
+            return http.getRetryAfter();
+
+        long ceiling = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 30));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private static boolean isRetryable(Exception e) {
+        HttpException http = httpException(e);
+        if (http != null) {
+            int code = http.getCode();
+            return code == 429 || code >= 500;
+        }
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof IOException)
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean isThrottled(Exception e) {
+        HttpException http = httpException(e);
+        return http != null && (http.getCode() == 429 || http.getCode() == 503);
+    }
+
+    private static HttpException httpException(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof HttpException)
+                return (HttpException) t;
+        }
+        return null;
+    }
+
+    public interface Call<T> {
+        T call() throws Exception;
+    }
+
+    private static class DefaultHolder {
+        private static final RetryPolicy INSTANCE = new RetryPolicy(4, Duration.ofMillis(250), Duration.ofSeconds(30),
+                new ConcurrencyLimiter(64, 1, 512));
+    }
+}
@@ -0,0 +1,131 @@
+package com.wire.xenon.outbound;
+
+import com.wire.xenon.models.SendReport;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Two stage (encrypt, send) pipeline for outgoing messages.
+ *
+ * <p>
+ *     Messages with the same key (conversation) go through both stages in the order they were submitted, but the
+ *     encryption of message N+1 can run while message N is still being sent. The number of messages in flight is
+ *     bounded: when the limit is reached {@link #submit} blocks the caller until one of them completes.
+ * </p>
+ */
+public class SendPipeline {
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private final ConcurrentHashMap<String, Tail> tails = new ConcurrentHashMap<>();
+    private final Executor encryptExecutor;
+    private final Executor sendExecutor;
+    private final Semaphore permits;
+    private final int maxInFlight;
+
+    /**
+     * @param encryptExecutor Runs serialization and encryption
+     * @param sendExecutor    Runs the (blocking) http calls
+     * @param maxInFlight     Maximal number of messages submitted and not yet completed
+     */
+    public SendPipeline(Executor encryptExecutor, Executor sendExecutor, int maxInFlight) {
+        this.encryptExecutor = encryptExecutor;
+        this.sendExecutor = sendExecutor;
+        this.permits = new Semaphore(maxInFlight);
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @return Process wide instance used by the WireClients by default
+     */
+    public static SendPipeline getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * @param key     Ordering key, usually the conversation
+     * @param encrypt First stage. Runs after the first stage of the previous message with the same key
+     * @param send    Second stage. Runs after the second stage of the previous message with the same key
+     * @return Future completed with the result of the second stage
+     */
+    public <T> CompletableFuture<SendReport> submit(String key, Callable<T> encrypt, Stage<T> send) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        }
+
+        Tail tail = tails.compute(key, (k, prev) -> {
+            CompletableFuture<?> prevEncrypted = prev != null ? prev.encrypted : DONE;
+            CompletableFuture<?> prevSent = prev != null ? prev.sent : DONE;
+
+            CompletableFuture<T> encrypted = prevEncrypted
+                    .handle((r, e) -> null)
+                    .thenApplyAsync(ignore -> call(encrypt), encryptExecutor);
+            CompletableFuture<SendReport> sent = prevSent
+                    .handle((r, e) -> null)
+                    .thenCombine(encrypted, (ignore, t) -> t)
+                    .thenApplyAsync(t -> apply(send, t), sendExecutor);
+            return new Tail(encrypted, sent);
+        });
+
+        CompletableFuture<SendReport> sent = tail.sent;
+        sent.whenComplete((r, e) -> {
+            permits.release();
+            tails.remove(key, tail);
+        });
+        return sent;
+    }
+
+    /**
+     * @return Number of messages submitted and not yet completed
+     */
+    public int getInFlight() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    private static <T> T call(Callable<T> callable) {
+        try {
+            return callable.call();
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static <T> SendReport apply(Stage<T> stage, T t) {
+        try {
+            return stage.apply(t);
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    public interface Stage<T> {
+        SendReport apply(T t) throws Exception;
+    }
+
+    private static class Tail {
+        private final CompletableFuture<?> encrypted;
+        private final CompletableFuture<SendReport> sent;
+
+        Tail(CompletableFuture<?> encrypted, CompletableFuture<SendReport> sent) {
+            this.encrypted = encrypted;
+            this.sent = sent;
+        }
+    }
+
+    private static class DefaultHolder {
+        private static final SendPipeline INSTANCE;
+
+        static {
+            AtomicInteger counter = new AtomicInteger();
+            ExecutorService executor = Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "xenon-send-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            INSTANCE = new SendPipeline(executor, executor, 64);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.wire.xenon.outbound;
+
+/**
+ * Token bucket refilled at a constant rate. Not thread safe, the owner synchronizes the access.
+ */
+class TokenBucket {
+    private final double rate;
+    private final double burst;
+    private double tokens;
+    private long refilled;
+
+    /**
+     * @param rate  Tokens added per second
+     * @param burst Capacity of the bucket
+     * @param now   Current time in nanoseconds
+     */
+    TokenBucket(double rate, double burst, long now) {
+        this.rate = rate;
+        this.burst = burst;
+        this.tokens = burst;
+        this.refilled = now;
+    }
+
+    /**
+     * @return Nanoseconds until one token is available. 0 if it is available now
+     */
+    long waitTime(long now) {
+        refill(now);
+        if (tokens >= 1)
+            return 0;
+        return (long) Math.ceil((1 - tokens) / rate * 1_000_000_000L);
+    }
+
+    void take() {
+        tokens -= 1;
+    }
+
+    /**
+     * @return TRUE when the bucket is full, so it makes no difference if it is dropped and created again
+     */
+    boolean isFull(long now) {
+        refill(now);
+        return tokens >= burst;
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(burst, tokens + (now - refilled) * rate / 1_000_000_000L);
+        refilled = now;
+    }
+}
@@ -3,6 +3,7 @@ package com.wire.xenon.state;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.wire.xenon.backend.models.NewBot;
 import com.wire.xenon.exceptions.MissingStateException;
+import com.wire.xenon.tools.UnitOfWork;
 import org.jdbi.v3.core.Jdbi;
 
 import java.io.IOException;
@@ -12,22 +13,24 @@ public class JdbiState implements State {
     private final static ObjectMapper mapper = new ObjectMapper();
 
     private final UUID botId;
+    private final Jdbi jdbi;
     private final StatesDAO statesDAO;
 
     public JdbiState(UUID botId, Jdbi jdbi) {
         this.botId = botId;
+        this.jdbi = jdbi;
         this.statesDAO = jdbi.onDemand(StatesDAO.class);
     }
 
     @Override
     public boolean saveState(NewBot newBot) throws IOException {
         String str = mapper.writeValueAsString(newBot);
-        return 1 == statesDAO.insert(botId, str);
+        return 1 == states().insert(botId, str);
     }
 
     @Override
     public NewBot getState() throws IOException {
-        String str = statesDAO.get(botId);
+        String str = states().get(botId);
         if (str == null)
             throw new MissingStateException(botId);
         return mapper.readValue(str, NewBot.class);
@@ -35,6 +38,10 @@ public class JdbiState implements State {
 
     @Override
     public boolean removeState() {
-        return 1 == statesDAO.delete(botId);
+        return 1 == states().delete(botId);
+    }
+
+    private StatesDAO states() {
+        return UnitOfWork.attach(jdbi, StatesDAO.class, statesDAO);
     }
 }
@@ -0,0 +1,164 @@
+package com.wire.xenon.tools;
+
+import org.jdbi.v3.core.Handle;
+import org.jdbi.v3.core.Jdbi;
+
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One connection and one transaction for processing one event (or one send) of a bot.
+ *
+ * <p>
+ *     While a unit of work is open on a thread, the crypto storage and the state of that Jdbi run their DAOs on its
+ *     {@link Handle} instead of taking a connection per call. The row locks taken by {@code SELECT ... FOR UPDATE}
+ *     hold until the unit of work commits, so a session cannot be changed by another node between being read and
+ *     its ratchet being persisted. When a session batch is committed the unit of work is committed with it
+ *     ({@link #checkpoint}): ciphers are only sent once the sessions they come from are durable.
+ * </p>
+ * <p>
+ *     The unit of work is bound to the thread that began it, work handed to other threads runs outside of it.
+ *     Units of work of the same bot are serialized in this process, otherwise one could wait for a row lock of the
+ *     other while holding a session lock the other one needs. Units of work of different bots never wait for each
+ *     other. Process all the events of a bot in units of work.
+ * </p>
+ * <p>
+ *     Units of work are opt-in: nothing in this library begins one, {@link com.wire.xenon.MessageResourceBase} does
+ *     not know the Jdbi of the application. Wrap the handling of the event where the Jdbi is known:
+ * </p>
+ * <pre>
+ *     try (UnitOfWork uow = UnitOfWork.begin(jdbi, botId)) {
+ *         handleMessage(eventId, payload, client);
+ *         uow.commit();
+ *     }
+ * </pre>
+ */
+public final class UnitOfWork implements AutoCloseable {
+    private static final ThreadLocal<UnitOfWork> CURRENT = new ThreadLocal<>();
+    // one lock per bot with an open or waiting unit of work
+    private static final ConcurrentHashMap<UUID, BotLock> LOCKS = new ConcurrentHashMap<>();
+
+    private final Jdbi jdbi;
+    private final Handle handle;
+    private final UUID botId;
+    private final BotLock lock;
+    private final HashMap<Class<?>, Object> daos = new HashMap<>();
+    private boolean committed;
+
+    private UnitOfWork(Jdbi jdbi, Handle handle, UUID botId, BotLock lock) {
+        this.jdbi = jdbi;
+        this.handle = handle;
+        this.botId = botId;
+        this.lock = lock;
+    }
+
+    /**
+     * Opens a connection and begins the transaction. Waits while another unit of work of the bot is open.
+     *
+     * @param jdbi  Jdbi of the storage and the state
+     * @param botId Bot the event is for
+     * @return Unit of work bound to the current thread. Must be closed on this thread
+     */
+    public static UnitOfWork begin(Jdbi jdbi, UUID botId) {
+        if (CURRENT.get() != null)
+            throw new IllegalStateException("Unit of work already open on this thread");
+
+        BotLock lock = acquire(botId);
+        try {
+            Handle handle = jdbi.open();
+            try {
+                handle.begin();
+            } catch (RuntimeException e) {
+                handle.close();
+                throw e;
+            }
+            UnitOfWork ret = new UnitOfWork(jdbi, handle, botId, lock);
+            CURRENT.set(ret);
+            return ret;
+        } catch (RuntimeException e) {
+            release(botId, lock);
+            throw e;
+        }
+    }
+
+    /**
+     * @param jdbi     Jdbi the DAO belongs to
+     * @param type     DAO type
+     * @param fallback DAO used outside of a unit of work (onDemand)
+     * @return DAO attached to the unit of work open on this thread, or the fallback
+     */
+    public static <T> T attach(Jdbi jdbi, Class<T> type, T fallback) {
+        UnitOfWork current = CURRENT.get();
+        if (current == null || current.jdbi != jdbi)
+            return fallback;
+        return type.cast(current.daos.computeIfAbsent(type, current.handle::attach));
+    }
+
+    /**
+     * Commits what the unit of work open on this thread did so far and continues in a new transaction.
+     * Does nothing outside of a unit of work.
+     *
+     * @param jdbi Jdbi the changes were made with
+     */
+    public static void checkpoint(Jdbi jdbi) {
+        UnitOfWork current = CURRENT.get();
+        if (current == null || current.jdbi != jdbi)
+            return;
+        current.handle.commit();
+        current.handle.begin();
+    }
+
+    /**
+     * @return True if a unit of work is open on this thread
+     */
+    public static boolean isOpen() {
+        return CURRENT.get() != null;
+    }
+
+    public void commit() {
+        handle.commit();
+        committed = true;
+    }
+
+    /**
+     * Rolls back unless committed, releases the connection and lets the next unit of work of the bot begin
+     */
+    @Override
+    public void close() {
+        if (CURRENT.get() != this)
+            throw new IllegalStateException("Unit of work closed on another thread");
+        try {
+            if (!committed)
+                handle.rollback();
+        } finally {
+            CURRENT.remove();
+            try {
+                handle.close();
+            } finally {
+                release(botId, lock);
+            }
+        }
+    }
+
+    private static BotLock acquire(UUID botId) {
+        BotLock ret = LOCKS.compute(botId, (id, lock) -> {
+            BotLock next = lock == null ? new BotLock() : lock;
+            next.users++;
+            return next;
+        });
+        ret.lock();
+        return ret;
+    }
+
+    private static void release(UUID botId, BotLock lock) {
+        lock.unlock();
+        LOCKS.computeIfPresent(botId, (id, current) -> --current.users == 0 ? null : current);
+    }
+
+    private static final class BotLock extends ReentrantLock {
+        // guarded by the map entry of the bot
+        private int users;
+    }
+}
@@ -0,0 +1,5 @@
+CREATE TABLE Devices (
+    id         varchar PRIMARY KEY,
+    data       json NOT NULL,
+    updated    bigint NOT NULL
+);
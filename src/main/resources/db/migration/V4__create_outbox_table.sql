@@ -0,0 +1,8 @@
+CREATE TABLE Outbox (
+    messageId  uuid PRIMARY KEY,
+    botId      uuid NOT NULL,
+    userId     uuid,
+    domain     varchar,
+    payload    bytea NOT NULL,
+    created    bigint NOT NULL
+);
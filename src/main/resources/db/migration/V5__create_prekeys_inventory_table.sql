@@ -0,0 +1,7 @@
+CREATE TABLE PrekeysInventory (
+    botId      uuid PRIMARY KEY,
+    nextId     integer NOT NULL,
+    available  integer NOT NULL,
+    rate       double precision NOT NULL,
+    reconciled bigint NOT NULL
+);
@@ -0,0 +1,48 @@
+package com.wire.xenon;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Minimal timing harness for the tests tagged "benchmark", run with {@code mvn test -Pbenchmark}.
+ * The operation is warmed up first, then the average time and the heap allocated by the calling thread are
+ * reported per operation.
+ */
+final class Benchmark {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private Benchmark() {
+    }
+
+    static Result measure(String name, int warmup, int iterations, Op op) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            op.run();
+        }
+
+        long allocated = THREADS.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            op.run();
+        }
+        long nanos = System.nanoTime() - start;
+        allocated = THREADS.getCurrentThreadAllocatedBytes() - allocated;
+
+        Result ret = new Result((double) nanos / iterations, (double) allocated / iterations);
+        System.out.printf("%-50s %12.1f us/op %12.0f B/op%n", name, ret.nanosPerOp / 1000, ret.bytesPerOp);
+        return ret;
+    }
+
+    interface Op {
+        void run() throws Exception;
+    }
+
+    static final class Result {
+        final double nanosPerOp;
+        final double bytesPerOp;
+
+        Result(double nanosPerOp, double bytesPerOp) {
+            this.nanosPerOp = nanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+    }
+}
@@ -1,9 +1,16 @@
 package com.wire.xenon;
 
+import com.wire.xenon.cache.DevicesDAO;
+import com.wire.xenon.crypto.PreKeyInventoryDAO;
+import com.wire.xenon.crypto.PreKeyStock;
 import com.wire.xenon.crypto.storage.IdentitiesDAO;
+import com.wire.xenon.outbound.OutboxDAO;
+import com.wire.xenon.outbound.OutboxEntry;
 import com.wire.xenon.state.StatesDAO;
 import org.junit.jupiter.api.Test;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 
 public class DAOTest extends DatabaseTestBase {
@@ -27,4 +34,38 @@ public class DAOTest extends DatabaseTestBase {
         final String dbText = statesDAO.get(id);
         final int delete = statesDAO.delete(id);
     }
+
+    @Test
+    public void testDevicesDAO() {
+        final DevicesDAO devicesDAO = jdbi.onDemand(DevicesDAO.class);
+        final String id = UUID.randomUUID().toString();
+        final String text = "{\"wire.com\" : {}}";
+
+        final int insert = devicesDAO.insert(id, text, System.currentTimeMillis());
+        final String dbText = devicesDAO.get(id, 0);
+        final int delete = devicesDAO.delete(id);
+    }
+
+    @Test
+    public void testOutboxDAO() {
+        final OutboxDAO outboxDAO = jdbi.onDemand(OutboxDAO.class);
+        final UUID id = UUID.randomUUID();
+
+        final int[] insert = outboxDAO.insert(List.of(id), List.of(UUID.randomUUID()), Collections.singletonList(null),
+                Collections.singletonList(null), List.of(new byte[]{1}), List.of(System.currentTimeMillis()));
+        final List<OutboxEntry> pending = outboxDAO.get();
+        final int[] delete = outboxDAO.delete(List.of(id));
+    }
+
+    @Test
+    public void testPreKeyInventoryDAO() {
+        final PreKeyInventoryDAO inventoryDAO = jdbi.onDemand(PreKeyInventoryDAO.class);
+        final UUID id = UUID.randomUUID();
+
+        final int insert = inventoryDAO.insert(id, 100, 80, 2.5, System.currentTimeMillis());
+        final PreKeyStock stock = inventoryDAO.get(id);
+        final Integer next = inventoryDAO.reserve(id, 10);
+        assert next == 110;
+        final int delete = inventoryDAO.delete(id);
+    }
 }
@@ -0,0 +1,62 @@
+package com.wire.xenon;
+
+import com.wire.xenon.backend.models.QualifiedId;
+import com.wire.xenon.models.otr.DeviceSet;
+import com.wire.xenon.models.otr.Missing;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Walking the devices of a conversation the way the encryption of every send does, from the {@link Missing} maps
+ * and from the compact {@link DeviceSet}
+ */
+@Tag("benchmark")
+public class DeviceSetBenchmarkTest {
+    private static final int USERS = 300;
+    private static final int CLIENTS_PER_USER = 3;
+
+    private int visited;
+
+    @Test
+    public void deviceSetWalkAllocatesLess() throws Exception {
+        Missing missing = new Missing();
+        for (int i = 0; i < USERS; i++) {
+            QualifiedId userId = new QualifiedId(UUID.randomUUID(), "wire.com");
+            for (int c = 0; c < CLIENTS_PER_USER; c++) {
+                missing.add(userId, "client" + c);
+            }
+        }
+        DeviceSet devices = DeviceSet.of(missing);
+
+        Benchmark.Result maps = Benchmark.measure("walk Missing, devices: " + USERS * CLIENTS_PER_USER, 10_000, 10_000,
+                () -> walk(missing));
+        Benchmark.Result compact = Benchmark.measure("walk DeviceSet, devices: " + USERS * CLIENTS_PER_USER, 10_000, 10_000,
+                () -> walk(devices));
+
+        assertEquals(2 * 20_000 * USERS * CLIENTS_PER_USER, visited);
+        assertTrue(compact.bytesPerOp < maps.bytesPerOp);
+    }
+
+    private void walk(Missing missing) {
+        for (QualifiedId userId : missing.toUserIds()) {
+            Collection<String> clients = missing.toClients(userId);
+            visited += clients.size();
+        }
+    }
+
+    private void walk(DeviceSet devices) {
+        for (int i = 0; i < devices.userCount(); i++) {
+            QualifiedId userId = devices.user(i);
+            List<String> clients = devices.clients(i);
+            if (userId != null)
+                visited += clients.size();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.wire.xenon;
+
+import com.wire.xenon.backend.models.QualifiedId;
+import com.wire.xenon.cache.DevicesCache;
+import com.wire.xenon.cache.DevicesDAO;
+import com.wire.xenon.cache.JdbiDevicesStore;
+import com.wire.xenon.exceptions.HttpException;
+import com.wire.xenon.models.otr.DeviceSet;
+import com.wire.xenon.models.otr.Devices;
+import com.wire.xenon.models.otr.Missing;
+import org.jdbi.v3.core.Jdbi;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class DevicesCacheTest {
+    private static final String KEY = "conversation_client";
+
+    @Test
+    public void concurrentMissesLoadOnce() throws Exception {
+        DevicesCache cache = new DevicesCache(Duration.ofMinutes(1), null);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(1);
+        QualifiedId userId = new QualifiedId(UUID.randomUUID(), "wire.com");
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<DeviceSet>> futures = executor.invokeAll(List.of(
+                    () -> cache.get(KEY, () -> load(loads, latch, userId)),
+                    () -> cache.get(KEY, () -> load(loads, latch, userId)),
+                    () -> cache.get(KEY, () -> load(loads, latch, userId)),
+                    () -> {
+                        latch.countDown();
+                        return cache.get(KEY, () -> load(loads, latch, userId));
+                    }));
+            for (Future<DeviceSet> future : futures) {
+                assertEquals(List.of("client1"), future.get().toClients(userId));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void expiredEntryIsLoadedAgain() throws Exception {
+        DevicesCache cache = new DevicesCache(Duration.ZERO, null);
+        AtomicInteger loads = new AtomicInteger();
+
+        cache.get(KEY, () -> {
+            loads.incrementAndGet();
+            return new Missing();
+        });
+        Thread.sleep(5);
+        cache.get(KEY, () -> {
+            loads.incrementAndGet();
+            return new Missing();
+        });
+
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void leastRecentlyUsedConversationIsDropped() throws Exception {
+        DevicesCache cache = new DevicesCache(Duration.ofMinutes(1), null, 2);
+        AtomicInteger loads = new AtomicInteger();
+        DevicesCache.Loader loader = () -> {
+            loads.incrementAndGet();
+            return new Missing();
+        };
+
+        cache.get("a", loader);
+        cache.get("b", loader);
+        cache.get("a", loader);
+        cache.get("c", loader);
+        assertEquals(2, cache.size());
+        assertEquals(3, loads.get());
+
+        cache.get("a", loader);
+        assertEquals(3, loads.get());
+        cache.get("b", loader);
+        assertEquals(4, loads.get());
+    }
+
+    @Test
+    public void expiredEntryIsDropped() throws Exception {
+        DevicesCache cache = new DevicesCache(Duration.ZERO, null);
+        cache.get(KEY, Missing::new);
+        assertEquals(1, cache.size());
+        Thread.sleep(5);
+
+        assertThrows(HttpException.class, () -> cache.get(KEY, () -> {
+            throw new HttpException(500);
+        }));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void updateAppliesMissingRedundantAndDeleted() throws Exception {
+        DevicesCache cache = new DevicesCache(Duration.ofMinutes(1), null);
+        QualifiedId alice = new QualifiedId(UUID.randomUUID(), "wire.com");
+        QualifiedId bob = new QualifiedId(UUID.randomUUID(), "wire.com");
+
+        Missing initial = new Missing();
+        initial.add(alice, List.of("alice1", "alice2"));
+        initial.add(bob, List.of("bob1"));
+        cache.get(KEY, () -> initial);
+
+        Devices res = new Devices();
+        res.missing.add(alice, "alice3");
+        res.redundant.add(alice, "alice1");
+        res.deleted.add(bob, "bob1");
+        cache.update(KEY, res);
+
+        DeviceSet devices = cache.get(KEY, () -> fail("should be cached"));
+        assertEquals(List.of("alice2", "alice3"), devices.toClients(alice));
+        assertFalse(devices.toUserIds().contains(bob));
+        // the original snapshot is left untouched
+        assertEquals(List.of("alice1", "alice2"), initial.toClients(alice));
+    }
+
+    @Test
+    public void removeDropsUsersThatLeft() throws Exception {
+        DevicesCache cache = new DevicesCache(Duration.ofMinutes(1), null);
+        QualifiedId alice = new QualifiedId(UUID.randomUUID(), "wire.com");
+        QualifiedId bob = new QualifiedId(UUID.randomUUID(), "wire.com");
+
+        Missing initial = new Missing();
+        initial.add(alice, "alice1");
+        initial.add(bob, "bob1");
+        cache.get(KEY, () -> initial);
+
+        cache.remove(KEY, List.of(new QualifiedId(bob.id, null)));
+
+        DeviceSet devices = cache.get(KEY, () -> fail("should be cached"));
+        assertEquals(List.of(alice), devices.toUserIds());
+    }
+
+    @Test
+    public void unqualifiedUsersSurviveTheStore() throws Exception {
+        DevicesDAO devicesDAO = mock(DevicesDAO.class);
+        HashMap<String, String> rows = new HashMap<>();
+        when(devicesDAO.insert(anyString(), anyString(), anyLong())).then(i -> {
+            rows.put(i.getArgument(0), i.getArgument(1));
+            return 1;
+        });
+        when(devicesDAO.get(anyString(), anyLong())).then(i -> rows.get(i.<String>getArgument(0)));
+        Jdbi jdbi = mock(Jdbi.class);
+        when(jdbi.onDemand(DevicesDAO.class)).thenReturn(devicesDAO);
+        JdbiDevicesStore store = new JdbiDevicesStore(jdbi, Duration.ofMinutes(1));
+        QualifiedId alice = new QualifiedId(UUID.randomUUID(), "");
+        QualifiedId bob = new QualifiedId(UUID.randomUUID(), "wire.com");
+
+        Missing initial = new Missing();
+        initial.add(alice, "alice1");
+        initial.add(bob, "bob1");
+        new DevicesCache(Duration.ofMinutes(1), store).get(KEY, () -> initial);
+
+        // another node reads the entry the first one stored
+        DevicesCache cache = new DevicesCache(Duration.ofMinutes(1), store);
+        DeviceSet devices = cache.get(KEY, () -> fail("should be stored"));
+        assertEquals(List.of(alice, bob), devices.toUserIds());
+        assertEquals("", devices.user(0).domain);
+
+        Devices res = new Devices();
+        res.missing.add(alice, "alice2");
+        cache.update(KEY, res);
+        assertEquals(List.of("alice1", "alice2"), cache.get(KEY, () -> fail("should be cached")).toClients(alice));
+        assertEquals(List.of("alice1", "alice2"), store.get(KEY).toMissing().toClients(alice));
+    }
+
+    private static Missing load(AtomicInteger loads, CountDownLatch latch, QualifiedId userId) {
+        loads.incrementAndGet();
+        try {
+            latch.await();
+            Thread.sleep(50);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        Missing missing = new Missing();
+        missing.add(userId, "client1");
+        return missing;
+    }
+}
@@ -0,0 +1,70 @@
+package com.wire.xenon;
+
+import com.waz.model.Messages;
+import com.wire.bots.cryptobox.CryptoException;
+import com.wire.xenon.backend.models.Payload;
+import com.wire.xenon.backend.models.QualifiedId;
+import com.wire.xenon.crypto.Cipher;
+import com.wire.xenon.crypto.DecryptResult;
+import org.junit.jupiter.api.Test;
+
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class MessageResourceBaseTest {
+
+    @Test
+    public void queuedMessagesAreDecryptedInOneBatch() throws Exception {
+        MessageHandlerBase handler = mock(MessageHandlerBase.class);
+        WireClient client = mock(WireClient.class);
+        when(client.getId()).thenReturn(UUID.randomUUID());
+        QualifiedId alice = new QualifiedId(UUID.randomUUID(), "wire.com");
+        Messages.GenericMessage hello = Messages.GenericMessage.newBuilder()
+                .setMessageId(UUID.randomUUID().toString())
+                .setText(Messages.Text.newBuilder().setContent("Hello"))
+                .build();
+        when(client.decryptProteusBatch(anyList())).thenAnswer(invocation -> {
+            List<Cipher> ciphers = invocation.getArgument(0);
+            return List.of(
+                    DecryptResult.ok(ciphers.get(0), hello.toByteArray()),
+                    DecryptResult.failed(ciphers.get(1), new CryptoException(CryptoException.Code.DUPLICATE_MESSAGE)));
+        });
+
+        LinkedHashMap<UUID, Payload> events = new LinkedHashMap<>();
+        events.put(UUID.randomUUID(), message(alice, "first"));
+        events.put(UUID.randomUUID(), message(alice, "second"));
+        Payload rename = new Payload();
+        rename.type = "conversation.rename";
+        rename.data = new Payload.Data();
+        events.put(UUID.randomUUID(), rename);
+
+        new MessageResourceBase(handler) {
+        }.handleMessages(events, client);
+
+        verify(client).decryptProteusBatch(argThat((List<Cipher> ciphers) -> ciphers.size() == 2
+                && ciphers.get(0).cypher.equals(encode("first")) && ciphers.get(1).cypher.equals(encode("second"))));
+        verify(client, never()).decryptProteus(any(QualifiedId.class), anyString(), any(byte[].class));
+        // the message that failed to decrypt does not stop the events after it
+        verify(handler).onEvent(client, alice, hello);
+        verify(handler).onConversationRename(eq(client), any());
+    }
+
+    private static Payload message(QualifiedId from, String cipher) {
+        Payload payload = new Payload();
+        payload.type = "conversation.otr-message-add";
+        payload.from = from;
+        payload.data = new Payload.Data();
+        payload.data.sender = "alice1";
+        payload.data.text = encode(cipher);
+        return payload;
+    }
+
+    private static String encode(String cipher) {
+        return Base64.getEncoder().encodeToString(cipher.getBytes());
+    }
+}
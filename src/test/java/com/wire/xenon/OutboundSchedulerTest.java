@@ -0,0 +1,123 @@
+package com.wire.xenon;
+
+import com.wire.xenon.assets.IGeneric;
+import com.wire.xenon.assets.MessageText;
+import com.wire.xenon.backend.models.QualifiedId;
+import com.wire.xenon.models.SendReport;
+import com.wire.xenon.outbound.OutboundScheduler;
+import com.wire.xenon.outbound.OutboundScheduler.Priority;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class OutboundSchedulerTest {
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+    private final Map<UUID, String> labels = new ConcurrentHashMap<>();
+
+    @Test
+    public void interactiveOvertakesBulk() throws Exception {
+        try (OutboundScheduler scheduler = new OutboundScheduler(20, 1, 1000, 1000)) {
+            WireClient client = client(UUID.randomUUID());
+            List<CompletableFuture<SendReport>> futures = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                futures.add(scheduler.submit(client, message("bulk" + i), Priority.BULK));
+            }
+            futures.add(scheduler.submit(client, message("reply"), Priority.INTERACTIVE));
+            assertTrue(scheduler.getQueueDepth(Priority.BULK) >= 4);
+
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+
+            // only the very first bulk message could have been dispatched before the reply was submitted
+            assertTrue(sent.indexOf("reply") <= 1, sent.toString());
+            assertEquals(6, scheduler.getDispatched());
+        }
+    }
+
+    @Test
+    public void throttledConversationDoesNotBlockOthers() throws Exception {
+        try (OutboundScheduler scheduler = new OutboundScheduler(1, 1, 1000, 1000)) {
+            WireClient busy = client(UUID.randomUUID());
+            WireClient quiet = client(UUID.randomUUID());
+
+            scheduler.submit(busy, message("busy0"), Priority.BULK);
+            scheduler.submit(busy, message("busy1"), Priority.BULK);
+            scheduler.submit(quiet, message("quiet"), Priority.BULK).get(500, TimeUnit.MILLISECONDS);
+
+            assertEquals(List.of("busy0", "quiet"), sent);
+            assertEquals(1, scheduler.getQueueDepth(Priority.BULK));
+        }
+    }
+
+    @Test
+    public void lowerLanesAreNotStarved() throws Exception {
+        try (OutboundScheduler scheduler = new OutboundScheduler(1000, 1000, 1000, 1000)) {
+            List<CompletableFuture<SendReport>> futures = new ArrayList<>();
+            synchronized (sent) {
+                // the dispatcher blocks on the list until every message is queued
+                WireClient client = client(UUID.randomUUID());
+                futures.add(scheduler.submit(client, message("first"), Priority.INTERACTIVE));
+                for (int i = 0; i < 40; i++) {
+                    futures.add(scheduler.submit(client, message("reply" + i), Priority.INTERACTIVE));
+                }
+                futures.add(scheduler.submit(client, message("receipt"), Priority.RECEIPTS));
+            }
+
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+
+            // 1 of 9 dispatches goes to the receipts while the interactive lane is busy
+            assertTrue(sent.indexOf("receipt") < 20, sent.toString());
+        }
+    }
+
+    @Test
+    public void botsInOneConversationHaveTheirOwnBuckets() throws Exception {
+        try (OutboundScheduler scheduler = new OutboundScheduler(1, 1, 1000, 1000)) {
+            QualifiedId conversationId = new QualifiedId(UUID.randomUUID(), "wire.com");
+            WireClient first = client(UUID.randomUUID(), conversationId);
+            WireClient second = client(UUID.randomUUID(), conversationId);
+
+            scheduler.submit(first, message("first0"), Priority.BULK);
+            scheduler.submit(first, message("first1"), Priority.BULK);
+            scheduler.submit(second, message("second"), Priority.BULK).get(500, TimeUnit.MILLISECONDS);
+
+            assertEquals(List.of("first0", "second"), sent);
+        }
+    }
+
+    private IGeneric message(String label) {
+        MessageText message = new MessageText(label);
+        labels.put(message.getMessageId(), label);
+        return message;
+    }
+
+    private WireClient client(UUID botId) {
+        return client(botId, new QualifiedId(UUID.randomUUID(), "wire.com"));
+    }
+
+    private WireClient client(UUID botId, QualifiedId conversationId) {
+        WireClient client = mock(WireClient.class);
+        when(client.getId()).thenReturn(botId);
+        when(client.getConversationId()).thenReturn(conversationId);
+        when(client.sendAsync(any(IGeneric.class))).thenAnswer(invocation -> {
+            IGeneric message = invocation.getArgument(0);
+            synchronized (sent) {
+                sent.add(labels.get(message.getMessageId()));
+            }
+            return CompletableFuture.completedFuture(new SendReport(message.getMessageId(), 1, null));
+        });
+        return client;
+    }
+}
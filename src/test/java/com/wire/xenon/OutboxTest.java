@@ -0,0 +1,141 @@
+package com.wire.xenon;
+
+import com.wire.xenon.assets.IGeneric;
+import com.wire.xenon.assets.MessageText;
+import com.wire.xenon.backend.models.QualifiedId;
+import com.wire.xenon.models.SendReport;
+import com.wire.xenon.outbound.FileOutboxStore;
+import com.wire.xenon.outbound.Outbox;
+import com.wire.xenon.outbound.OutboxEntry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class OutboxTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void fileStoreSurvivesReopenAndTornTail() throws Exception {
+        OutboxEntry first = entry();
+        OutboxEntry second = entry();
+        try (FileOutboxStore store = new FileOutboxStore(dir.toString())) {
+            store.add(List.of(first, second));
+            store.remove(List.of(first.messageId));
+        }
+        // half written record of a crashed process
+        Files.write(dir.resolve("outbox.log"), new byte[]{1, 0, 0, 7}, StandardOpenOption.APPEND);
+
+        try (FileOutboxStore store = new FileOutboxStore(dir.toString())) {
+            List<OutboxEntry> pending = store.pending();
+            assertEquals(1, pending.size());
+            assertEquals(second.messageId, pending.get(0).messageId);
+            assertEquals(second.userId, pending.get(0).userId);
+            assertArrayEquals(second.payload, pending.get(0).payload);
+
+            OutboxEntry third = entry();
+            store.add(List.of(third));
+        }
+
+        try (FileOutboxStore store = new FileOutboxStore(dir.toString())) {
+            assertEquals(2, store.pending().size());
+        }
+    }
+
+    @Test
+    public void failedMessageIsReplayed() throws Exception {
+        WireClient client = mock(WireClient.class);
+        UUID botId = UUID.randomUUID();
+        when(client.getId()).thenReturn(botId);
+        when(client.sendAsync(any(IGeneric.class)))
+                .thenReturn(CompletableFuture.failedFuture(new IOException("connection reset")))
+                .thenAnswer(invocation -> {
+                    IGeneric message = invocation.getArgument(0);
+                    return CompletableFuture.completedFuture(new SendReport(message.getMessageId(), 1, null));
+                });
+
+        MessageText message = new MessageText("hello");
+        try (FileOutboxStore store = new FileOutboxStore(dir.toString())) {
+            Outbox outbox = new Outbox(store, 16, 0, Duration.ZERO, Duration.ZERO);
+            CompletableFuture<SendReport> future = outbox.send(client, message);
+            assertThrows(Exception.class, () -> future.get(5, TimeUnit.SECONDS));
+            outbox.close();
+            assertEquals(1, store.pending().size());
+        }
+
+        try (FileOutboxStore store = new FileOutboxStore(dir.toString())) {
+            Outbox outbox = new Outbox(store, 16);
+            assertEquals(1, outbox.replay(id -> id.equals(botId) ? client : null));
+            outbox.close();
+            assertTrue(store.pending().isEmpty());
+        }
+        verify(client, times(2)).sendAsync(any(IGeneric.class));
+    }
+
+    @Test
+    public void failedMessageIsRetried() throws Exception {
+        WireClient client = mock(WireClient.class);
+        when(client.getId()).thenReturn(UUID.randomUUID());
+        when(client.sendAsync(any(IGeneric.class)))
+                .thenReturn(CompletableFuture.failedFuture(new IOException("connection reset")))
+                .thenAnswer(invocation -> {
+                    IGeneric message = invocation.getArgument(0);
+                    return CompletableFuture.completedFuture(new SendReport(message.getMessageId(), 1, null));
+                });
+
+        try (FileOutboxStore store = new FileOutboxStore(dir.toString())) {
+            Outbox outbox = new Outbox(store, 16, 3, Duration.ofMillis(10), Duration.ofMillis(50));
+            outbox.send(client, new MessageText("hello")).get(5, TimeUnit.SECONDS);
+            outbox.close();
+            assertTrue(store.pending().isEmpty());
+        }
+        verify(client, times(2)).sendAsync(any(IGeneric.class));
+    }
+
+    @Test
+    public void closeWaitsForMessagesInFlight() throws Exception {
+        WireClient client = mock(WireClient.class);
+        when(client.getId()).thenReturn(UUID.randomUUID());
+        when(client.sendAsync(any(IGeneric.class))).thenAnswer(invocation -> {
+            IGeneric message = invocation.getArgument(0);
+            return CompletableFuture.supplyAsync(() -> new SendReport(message.getMessageId(), 1, null),
+                    CompletableFuture.delayedExecutor(200, TimeUnit.MILLISECONDS));
+        });
+
+        try (FileOutboxStore store = new FileOutboxStore(dir.toString())) {
+            Outbox outbox = new Outbox(store, 16);
+            CompletableFuture<SendReport> future = outbox.send(client, new MessageText("hello"));
+            // persisted and handed over to the client, the Backend did not answer yet
+            while (mockingDetails(client).getInvocations().stream()
+                    .noneMatch(i -> i.getMethod().getName().equals("sendAsync"))) {
+                Thread.sleep(5);
+            }
+            outbox.close();
+            assertTrue(future.isDone());
+            assertTrue(store.pending().isEmpty());
+        }
+    }
+
+    private static OutboxEntry entry() {
+        OutboxEntry entry = new OutboxEntry();
+        entry.messageId = UUID.randomUUID();
+        entry.botId = UUID.randomUUID();
+        entry.userId = new QualifiedId(UUID.randomUUID(), "wire.com");
+        entry.payload = new byte[]{1, 2, 3};
+        entry.created = System.currentTimeMillis();
+        return entry;
+    }
+}
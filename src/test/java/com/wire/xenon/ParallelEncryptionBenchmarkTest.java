@@ -0,0 +1,71 @@
+package com.wire.xenon;
+
+import com.wire.xenon.assets.MessageText;
+import com.wire.xenon.backend.models.QualifiedId;
+import com.wire.xenon.crypto.CryptoFile;
+import com.wire.xenon.models.otr.Missing;
+import com.wire.xenon.models.otr.PreKey;
+import com.wire.xenon.models.otr.PreKeys;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Serial and parallel encryption of one message for a growing number of devices, two devices per user
+ */
+@Tag("benchmark")
+public class ParallelEncryptionBenchmarkTest {
+    private static final int CLIENTS_PER_USER = 2;
+
+    @Test
+    public void encryptionScalesWithDevices() throws Exception {
+        String rootFolder = "xenon-benchmark-" + UUID.randomUUID();
+        byte[] content = new MessageText("Hello everybody!").createGenericMsg().toByteArray();
+
+        for (int devices : new int[]{50, 200, 800}) {
+            CryptoFile alice = new CryptoFile(rootFolder + "/" + devices + "/alice");
+            CryptoFile bob = new CryptoFile(rootFolder + "/" + devices + "/bob");
+            try {
+                Missing missing = sessions(alice, bob, devices, content);
+
+                alice.setEncryptionExecutor(null, 0);
+                Benchmark.measure("encrypt serial, devices: " + devices, 5, 20,
+                        () -> assertEquals(devices, alice.encryptRaw(missing, content).count()));
+
+                alice.setEncryptionExecutor(ForkJoinPool.commonPool(), 0);
+                Benchmark.measure("encrypt parallel, devices: " + devices, 5, 20,
+                        () -> assertEquals(devices, alice.encryptRaw(missing, content).count()));
+            } finally {
+                alice.purge();
+                bob.purge();
+            }
+        }
+    }
+
+    // Alice's sessions with the devices, made from Bob's prekeys handed out to different users
+    private static Missing sessions(CryptoFile alice, CryptoFile bob, int devices, byte[] content) throws Exception {
+        ArrayList<PreKey> preKeys = bob.newPreKeys(0, devices);
+        PreKeys byUser = new PreKeys();
+        Missing ret = new Missing();
+        Map<UUID, Map<String, PreKey>> users = new HashMap<>();
+        for (int i = 0; i < devices; i += CLIENTS_PER_USER) {
+            QualifiedId userId = new QualifiedId(UUID.randomUUID(), "wire.com");
+            Map<String, PreKey> clients = new HashMap<>();
+            for (int c = 0; c < CLIENTS_PER_USER; c++) {
+                clients.put("client" + c, preKeys.get(i + c));
+                ret.add(userId, "client" + c);
+            }
+            users.put(userId.id, clients);
+        }
+        byUser.qualifiedUserClientPrekeys.put("wire.com", users);
+        alice.encrypt(byUser, content);
+        return ret;
+    }
+}
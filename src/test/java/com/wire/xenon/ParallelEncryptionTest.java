@@ -0,0 +1,74 @@
+package com.wire.xenon;
+
+import com.wire.xenon.assets.MessageText;
+import com.wire.xenon.backend.models.QualifiedId;
+import com.wire.xenon.crypto.CryptoDatabase;
+import com.wire.xenon.crypto.storage.JdbiStorage;
+import com.wire.xenon.crypto.storage.Session;
+import com.wire.xenon.crypto.storage.SessionsDAO;
+import com.wire.xenon.models.otr.Missing;
+import com.wire.xenon.models.otr.PreKey;
+import com.wire.xenon.models.otr.PreKeys;
+import com.wire.xenon.models.otr.Recipients;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ParallelEncryptionTest extends DatabaseTestBase {
+    private static final int DEVICES = 40;
+
+    @Test
+    public void testParallelEqualsSerial() throws Exception {
+        QualifiedId aliceId = new QualifiedId(UUID.randomUUID(), UUID.randomUUID().toString());
+        QualifiedId bobId = new QualifiedId(UUID.randomUUID(), UUID.randomUUID().toString());
+        String rootFolder = "xenon-unit-test-" + UUID.randomUUID();
+        JdbiStorage storage = new JdbiStorage(jdbi);
+        SessionsDAO sessionsDAO = jdbi.onDemand(SessionsDAO.class);
+
+        CryptoDatabase alice = new CryptoDatabase(aliceId, storage, rootFolder + "/testParallelEqualsSerial/alice");
+        CryptoDatabase bob = new CryptoDatabase(bobId, storage, rootFolder + "/testParallelEqualsSerial/bob");
+
+        // Create sessions with many Bob's devices
+        PreKeys preKeys = new PreKeys();
+        Map<String, PreKey> clients = new HashMap<>();
+        ArrayList<PreKey> bobPreKeys = bob.newPreKeys(0, DEVICES);
+        Missing missing = new Missing();
+        for (int i = 0; i < DEVICES; i++) {
+            String clientId = "bob" + i;
+            clients.put(clientId, bobPreKeys.get(i));
+            missing.add(bobId, clientId);
+        }
+        preKeys.qualifiedUserClientPrekeys.put(bobId.domain, Map.of(bobId.id, clients));
+
+        byte[] content = new MessageText("Hello Bob!").createGenericMsg().toByteArray();
+        Recipients fromPreKeys = alice.encrypt(preKeys, content);
+        assertEquals(DEVICES, fromPreKeys.get(bobId).size());
+
+        // Remember the state of the sessions so both paths encrypt from the same ratchet
+        Map<String, byte[]> snapshot = new HashMap<>();
+        for (String clientId : clients.keySet()) {
+            String sid = String.format("%s_%s", bobId, clientId);
+            Session session = sessionsDAO.get(aliceId.toString(), sid);
+            snapshot.put(sid, session.data);
+        }
+
+        Recipients serial = alice.encrypt(missing, content);
+
+        snapshot.forEach((sid, data) -> sessionsDAO.insert(aliceId.toString(), sid, data));
+
+        alice.setEncryptionExecutor(ForkJoinPool.commonPool(), 0);
+        Recipients parallel = alice.encrypt(missing, content);
+
+        assertEquals(DEVICES, parallel.get(bobId).size());
+        assertEquals(serial, parallel);
+
+        alice.close();
+        bob.close();
+    }
+}
@@ -4,9 +4,16 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.wire.xenon.backend.models.Member;
 import com.wire.xenon.backend.models.Payload;
 import com.wire.xenon.backend.models.QualifiedId;
+import com.wire.xenon.models.otr.DeviceSet;
+import com.wire.xenon.models.otr.Missing;
+import com.wire.xenon.models.otr.OtrMessage;
+import com.wire.xenon.models.otr.RawRecipients;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.util.Base64;
 import java.util.List;
+import java.util.Objects;
 import java.util.UUID;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -117,4 +124,87 @@ public class PayloadSerializationTest {
         assertEquals(payload.team, deserializedPayload.team);
         assertEquals(payload.data.members.others.get(0).id, deserializedPayload.data.members.others.get(0).id);
     }
+
+    @Test
+    public void rawOtrMessageSerialization() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        RawRecipients raw = new RawRecipients();
+        raw.add(new QualifiedId(UUID.randomUUID(), "wire.com"), "client1", new byte[]{1, 2, 3, 4, 5});
+        raw.add(new QualifiedId(UUID.randomUUID(), null), "client2", new byte[]{(byte) 0xff, 0});
+
+        OtrMessage streamed = new OtrMessage("sender", raw);
+        OtrMessage encoded = new OtrMessage("sender", raw.toRecipients());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        streamed.writeTo(out);
+
+        // the streamed body is the same as the one of the Base64 encoded Recipients
+        assertEquals(objectMapper.readTree(objectMapper.writeValueAsString(encoded)), objectMapper.readTree(out.toByteArray()));
+
+        // the encoded ciphers follow the ciphers added later
+        assertNull(streamed.getRecipients().get(new QualifiedId(UUID.randomUUID(), "wire.com"), "client3"));
+        QualifiedId late = new QualifiedId(UUID.randomUUID(), "wire.com");
+        RawRecipients more = new RawRecipients();
+        more.add(late, "client3", new byte[]{7});
+        streamed.add(more);
+        assertEquals(Base64.getEncoder().encodeToString(new byte[]{7}), streamed.getRecipients().get(late, "client3"));
+    }
+
+    @Test
+    public void deviceSetSerialization() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        QualifiedId alice = new QualifiedId(UUID.randomUUID(), "wire.com");
+        QualifiedId bob = new QualifiedId(UUID.randomUUID(), "other.com");
+        Missing missing = new Missing();
+        missing.add(alice, List.of("alice1", "alice2"));
+        missing.add(bob, "bob1");
+
+        DeviceSet devices = DeviceSet.of(missing);
+        String json = objectMapper.writeValueAsString(devices);
+
+        // same shape as Missing
+        assertEquals(objectMapper.readTree(objectMapper.writeValueAsString(missing)), objectMapper.readTree(json));
+
+        DeviceSet deserialized = objectMapper.readValue(json, DeviceSet.class);
+        assertEquals(3, deserialized.size());
+        assertEquals(List.of("alice1", "alice2"), deserialized.toClients(alice));
+        assertEquals(List.of("bob1"), deserialized.only(bob).toClients(bob));
+        assertEquals(0, deserialized.only(new QualifiedId(UUID.randomUUID(), "wire.com")).size());
+    }
+
+    @Test
+    public void deviceSetLookupInLargeSet() {
+        Missing missing = new Missing();
+        for (int i = 0; i < 100; i++) {
+            missing.add(new QualifiedId(UUID.randomUUID(), i % 2 == 0 ? "wire.com" : "other.org"), "client" + i);
+        }
+        DeviceSet devices = DeviceSet.of(missing);
+
+        for (QualifiedId userId : devices.toUserIds()) {
+            assertEquals(missing.toClients(userId), devices.toClients(userId));
+        }
+        assertTrue(devices.toClients(new QualifiedId(UUID.randomUUID(), "wire.com")).isEmpty());
+    }
+
+    @Test
+    public void qualifiedIdInterning() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        UUID id = UUID.randomUUID();
+        QualifiedId qualifiedId = QualifiedId.of(id, new String("domain.com"));
+
+        assertEquals(qualifiedId, QualifiedId.of(id, "domain.com"));
+        // only the domain is shared
+        assertNotSame(qualifiedId, QualifiedId.of(id, "domain.com"));
+        assertSame(qualifiedId.domain, QualifiedId.of(id, new String("domain.com")).domain);
+        QualifiedId deserialized = objectMapper.readValue(objectMapper.writeValueAsString(qualifiedId), QualifiedId.class);
+        assertEquals(qualifiedId, deserialized);
+        assertEquals(Objects.hash(id, "domain.com"), qualifiedId.hashCode());
+        assertEquals(id + "_domain.com", qualifiedId.toString());
+
+        // the cached hash follows changes of the public fields
+        QualifiedId mutable = new QualifiedId(id, "domain.com");
+        mutable.domain = "other.com";
+        assertEquals(QualifiedId.of(id, "other.com"), mutable);
+        assertEquals(QualifiedId.of(id, "other.com").hashCode(), mutable.hashCode());
+    }
 }
@@ -0,0 +1,91 @@
+package com.wire.xenon;
+
+import com.wire.xenon.crypto.Crypto;
+import com.wire.xenon.factories.CryptoFactory;
+import com.wire.xenon.factories.PooledCryptoFactory;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class PooledCryptoFactoryTest {
+    private final Map<UUID, Crypto> opened = new HashMap<>();
+    private final CryptoFactory factory = botId -> {
+        Crypto crypto = mock(Crypto.class);
+        opened.put(botId, crypto);
+        return crypto;
+    };
+
+    @Test
+    public void leasesReuseTheOpenBox() throws Exception {
+        PooledCryptoFactory pool = new PooledCryptoFactory(factory, 10, Duration.ofMinutes(1));
+        UUID botId = UUID.randomUUID();
+
+        Crypto first = pool.create(botId);
+        first.getIdentity();
+        first.close();
+        assertTrue(first.isClosed());
+        // the box may be evicted and closed once the lease is released
+        assertThrows(IllegalStateException.class, first::getIdentity);
+        Crypto second = pool.create(botId);
+        second.getIdentity();
+        second.close();
+        // closing a lease twice must not release the box twice
+        second.close();
+
+        assertEquals(1, opened.size());
+        verify(opened.get(botId), times(2)).getIdentity();
+        verify(opened.get(botId), never()).close();
+        assertEquals(1, pool.getMisses());
+        assertEquals(1, pool.getHits());
+
+        pool.close();
+        verify(opened.get(botId)).close();
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedIdleBoxes() throws Exception {
+        PooledCryptoFactory pool = new PooledCryptoFactory(factory, 2, Duration.ofMinutes(1));
+        UUID a = UUID.randomUUID();
+        UUID b = UUID.randomUUID();
+        UUID c = UUID.randomUUID();
+
+        Crypto leased = pool.create(a);
+        pool.create(b).close();
+        pool.create(c).close();
+
+        // a is in use, so b is closed instead
+        assertEquals(2, pool.size());
+        assertEquals(1, pool.getEvictions());
+        verify(opened.get(b)).close();
+        verify(opened.get(a), never()).close();
+        leased.close();
+
+        PooledCryptoFactory idle = new PooledCryptoFactory(factory, 10, Duration.ZERO);
+        idle.create(a).close();
+        Thread.sleep(5);
+        idle.evict();
+        assertEquals(0, idle.size());
+    }
+
+    @Test
+    public void purgedBoxIsNotReused() throws Exception {
+        PooledCryptoFactory pool = new PooledCryptoFactory(factory, 10, Duration.ofMinutes(1));
+        UUID botId = UUID.randomUUID();
+
+        Crypto lease = pool.create(botId);
+        Crypto purged = opened.get(botId);
+        lease.purge();
+        lease.close();
+        verify(purged).close();
+
+        pool.create(botId);
+        assertNotSame(purged, opened.get(botId));
+        assertEquals(2, pool.getMisses());
+    }
+}
@@ -0,0 +1,86 @@
+package com.wire.xenon;
+
+import com.wire.xenon.crypto.PreKeyInventory;
+import com.wire.xenon.crypto.PreKeyInventoryDAO;
+import com.wire.xenon.crypto.PreKeyStock;
+import org.jdbi.v3.core.Jdbi;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class PreKeyInventoryTest {
+    private static PreKeyInventory inventory(PreKeyInventoryDAO inventoryDAO, Duration reconcileInterval) {
+        Jdbi jdbi = mock(Jdbi.class);
+        when(jdbi.onDemand(PreKeyInventoryDAO.class)).thenReturn(inventoryDAO);
+        return new PreKeyInventory(jdbi, reconcileInterval, 1000);
+    }
+
+    private static WireClient client(UUID botId, Integer... ids) {
+        WireClient client = mock(WireClient.class);
+        when(client.getId()).thenReturn(botId);
+        when(client.getAvailablePrekeys()).then(i -> new ArrayList<>(List.of(ids)));
+        return client;
+    }
+
+    @Test
+    public void countsLocallyBetweenReconciles() {
+        PreKeyInventoryDAO inventoryDAO = mock(PreKeyInventoryDAO.class);
+        PreKeyInventory inventory = inventory(inventoryDAO, Duration.ofHours(1));
+        UUID botId = UUID.randomUUID();
+        // the ids wrapped around after 0xFFFE, 0xFFFF is the last resort prekey
+        WireClient client = client(botId, 65530, 65533, 2, 5, 65535);
+
+        assertEquals(12, inventory.shortfall(client, 2, 16));
+        // the first id follows the longest run of ids on the Backend
+        verify(inventoryDAO).insert(eq(botId), eq(6), eq(4), anyDouble(), anyLong());
+        inventory.uploaded(botId, 12);
+
+        // 16 prekeys expected on the Backend, 2 claimed by the users that joined
+        assertEquals(2, inventory.shortfall(client, 2, 16));
+        verify(client, times(1)).getAvailablePrekeys();
+        verify(inventoryDAO).insert(eq(botId), eq(6), eq(16), anyDouble(), anyLong());
+    }
+
+    @Test
+    public void reservesTheIdsInTheDatabase() {
+        UUID botId = UUID.randomUUID();
+        PreKeyInventoryDAO inventoryDAO = mock(PreKeyInventoryDAO.class);
+        // the row holds the next id after the update, 65534 + 4 wrapped around after 0xFFFE
+        when(inventoryDAO.reserve(botId, 4)).thenReturn(3);
+        when(inventoryDAO.reserve(botId, 1)).thenReturn(4);
+        PreKeyInventory inventory = inventory(inventoryDAO, Duration.ofHours(1));
+
+        assertEquals(65534, inventory.reserve(botId, 4));
+        assertEquals(3, inventory.reserve(botId, 1));
+        verify(inventoryDAO, never()).insert(any(), anyInt(), anyInt(), anyDouble(), anyLong());
+
+        // not tracked by any node yet
+        UUID unknown = UUID.randomUUID();
+        when(inventoryDAO.reserve(unknown, 1)).thenReturn(null);
+        assertThrows(IllegalStateException.class, () -> inventory.reserve(unknown, 1));
+    }
+
+    @Test
+    public void continuesFromThePersistedId() {
+        UUID botId = UUID.randomUUID();
+        PreKeyStock stock = new PreKeyStock();
+        stock.botId = botId;
+        stock.nextId = 65534;
+        stock.available = 100;
+        stock.reconciled = System.currentTimeMillis();
+        PreKeyInventoryDAO inventoryDAO = mock(PreKeyInventoryDAO.class);
+        when(inventoryDAO.get(botId)).thenReturn(stock);
+        PreKeyInventory inventory = inventory(inventoryDAO, Duration.ofHours(1));
+        WireClient client = client(botId);
+
+        assertEquals(0, inventory.shortfall(client, 1, 8));
+        verify(client, never()).getAvailablePrekeys();
+    }
+}
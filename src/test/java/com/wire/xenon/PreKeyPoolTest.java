@@ -0,0 +1,94 @@
+package com.wire.xenon;
+
+import com.wire.xenon.crypto.Crypto;
+import com.wire.xenon.crypto.PreKeyPool;
+import com.wire.xenon.factories.CryptoFactory;
+import com.wire.xenon.factories.PooledCryptoFactory;
+import com.wire.xenon.models.otr.PreKey;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.*;
+
+public class PreKeyPoolTest {
+    private static ArrayList<PreKey> generate(int from, int count) {
+        ArrayList<PreKey> ret = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            PreKey preKey = new PreKey();
+            preKey.id = (from + i) % 0xFFFF;
+            preKey.key = "key";
+            ret.add(preKey);
+        }
+        return ret;
+    }
+
+    @Test
+    public void servesFromTheRefilledBuffer() throws Exception {
+        Crypto crypto = mock(Crypto.class);
+        when(crypto.newPreKeys(anyInt(), anyInt())).then(i -> generate(i.getArgument(0), i.getArgument(1)));
+        CryptoFactory factory = mock(CryptoFactory.class);
+        when(factory.create(any())).thenReturn(crypto);
+        PooledCryptoFactory boxes = new PooledCryptoFactory(factory, 10, Duration.ofMinutes(1));
+        ArrayList<Runnable> tasks = new ArrayList<>();
+        Executor executor = tasks::add;
+        AtomicInteger nextId = new AtomicInteger(100);
+        PreKeyPool pool = new PreKeyPool(boxes, executor, 10, 50, (bot, count) -> nextId.getAndAdd(count));
+        UUID botId = UUID.randomUUID();
+
+        // empty buffer: generated on the event path, then refilled in the background
+        ArrayList<PreKey> first;
+        try (Crypto box = boxes.create(botId)) {
+            first = pool.take(botId, 16, box::newPreKeys);
+            assertEquals(1, tasks.size());
+            tasks.remove(0).run();
+        }
+        assertEquals(16, first.size());
+        assertEquals(100, first.get(0).id);
+        assertEquals(50, pool.size(botId));
+        // the refill went through the box the event had open
+        verify(factory, times(1)).create(botId);
+        verify(crypto, never()).close();
+
+        PreKeyPool.Generator generator = mock(PreKeyPool.Generator.class);
+        ArrayList<PreKey> second = pool.take(botId, 16, generator);
+        verifyNoInteractions(generator);
+        assertEquals(34, pool.size(botId));
+
+        HashSet<Integer> ids = new HashSet<>();
+        first.forEach(k -> ids.add(k.id));
+        second.forEach(k -> ids.add(k.id));
+        assertEquals(32, ids.size());
+        assertEquals(116, second.get(0).id);
+    }
+
+    @Test
+    public void nodesSharingTheAllocatorDoNotOverlap() throws Exception {
+        Crypto crypto = mock(Crypto.class);
+        when(crypto.newPreKeys(anyInt(), anyInt())).then(i -> generate(i.getArgument(0), i.getArgument(1)));
+        AtomicInteger nextId = new AtomicInteger();
+        PreKeyPool.Allocator allocator = (bot, count) -> nextId.getAndAdd(count);
+        PreKeyPool node1 = new PreKeyPool(new PooledCryptoFactory(botId -> crypto, 10, Duration.ofMinutes(1)),
+                Runnable::run, 0, 0, allocator);
+        PreKeyPool node2 = new PreKeyPool(new PooledCryptoFactory(botId -> crypto, 10, Duration.ofMinutes(1)),
+                Runnable::run, 0, 0, allocator);
+        UUID botId = UUID.randomUUID();
+
+        HashSet<Integer> ids = new HashSet<>();
+        node1.take(botId, 8, PreKeyPoolTest::generate).forEach(k -> ids.add(k.id));
+        node2.take(botId, 8, PreKeyPoolTest::generate).forEach(k -> ids.add(k.id));
+        node1.take(botId, 8, PreKeyPoolTest::generate).forEach(k -> ids.add(k.id));
+        assertEquals(24, ids.size());
+
+        assertThrows(NullPointerException.class, () -> new PreKeyPool(
+                new PooledCryptoFactory(botId2 -> crypto, 10, Duration.ofMinutes(1)), Runnable::run, 0, 0, null));
+    }
+}
@@ -0,0 +1,116 @@
+package com.wire.xenon;
+
+import com.wire.xenon.backend.models.QualifiedId;
+import com.wire.xenon.crypto.Crypto;
+import com.wire.xenon.models.otr.*;
+import com.wire.xenon.outbound.PreKeysCoalescer;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PreKeysCoalescerTest {
+    private static final byte[] SESSION = {1};
+    private static final byte[] PREKEY = {2};
+    private final QualifiedId bob = new QualifiedId(UUID.randomUUID(), "wire.com");
+    private final Set<String> sessions = ConcurrentHashMap.newKeySet();
+
+    @Test
+    public void concurrentSendsShareOnePreKeyFetch() throws Exception {
+        Crypto crypto = fakeCrypto();
+        PreKeysCoalescer coalescer = new PreKeysCoalescer();
+        UUID botId = UUID.randomUUID();
+        Missing missing = new Missing();
+        missing.add(bob, "bob1");
+
+        AtomicInteger fetches = new AtomicInteger();
+        CountDownLatch secondStarted = new CountDownLatch(1);
+        PreKeysCoalescer.Fetcher fetcher = m -> {
+            fetches.incrementAndGet();
+            secondStarted.await(5, TimeUnit.SECONDS);
+            Thread.sleep(100);
+            return preKeys(m);
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<RawRecipients> first = executor.submit(() -> coalescer.encrypt(botId, crypto, missing, new byte[0], fetcher));
+            Thread.sleep(50);
+            Future<RawRecipients> second = executor.submit(() -> {
+                secondStarted.countDown();
+                return coalescer.encrypt(botId, crypto, missing, new byte[0], fetcher);
+            });
+
+            assertArrayEquals(PREKEY, first.get(5, TimeUnit.SECONDS).get(bob, "bob1"));
+            assertArrayEquals(SESSION, second.get(5, TimeUnit.SECONDS).get(bob, "bob1"));
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, fetches.get());
+    }
+
+    @Test
+    public void establishedSessionSkipsFetch() throws Exception {
+        Crypto crypto = fakeCrypto();
+        PreKeysCoalescer coalescer = new PreKeysCoalescer();
+        Missing missing = new Missing();
+        missing.add(bob, "bob1");
+        sessions.add("bob1");
+
+        RawRecipients recipients = coalescer.encrypt(UUID.randomUUID(), crypto, missing, new byte[0], m -> {
+            throw new IllegalStateException("should not fetch");
+        });
+
+        assertArrayEquals(SESSION, recipients.get(bob, "bob1"));
+    }
+
+    private Crypto fakeCrypto() throws Exception {
+        Crypto crypto = mock(Crypto.class);
+        when(crypto.encryptRaw(any(Missing.class), any(byte[].class))).thenAnswer(invocation -> {
+            Missing m = invocation.getArgument(0);
+            RawRecipients ret = new RawRecipients();
+            for (QualifiedId userId : m.toUserIds()) {
+                for (String clientId : m.toClients(userId)) {
+                    if (sessions.contains(clientId))
+                        ret.add(userId, clientId, SESSION);
+                }
+            }
+            return ret;
+        });
+        when(crypto.encryptRaw(any(PreKeys.class), any(byte[].class))).thenAnswer(invocation -> {
+            PreKeys p = invocation.getArgument(0);
+            RawRecipients ret = new RawRecipients();
+            p.qualifiedUserClientPrekeys.forEach((domain, users) -> users.forEach((user, clients) -> clients.keySet().forEach(clientId -> {
+                sessions.add(clientId);
+                ret.add(new QualifiedId(user, domain), clientId, PREKEY);
+            })));
+            return ret;
+        });
+        return crypto;
+    }
+
+    private static PreKeys preKeys(Missing missing) {
+        PreKeys ret = new PreKeys();
+        for (QualifiedId userId : missing.toUserIds()) {
+            Map<String, PreKey> clients = new HashMap<>();
+            for (String clientId : missing.toClients(userId)) {
+                PreKey preKey = new PreKey();
+                preKey.id = 1;
+                preKey.key = "key";
+                clients.put(clientId, preKey);
+            }
+            ret.qualifiedUserClientPrekeys.computeIfAbsent(userId.domain, k -> new HashMap<>()).put(userId.id, clients);
+        }
+        return ret;
+    }
+}
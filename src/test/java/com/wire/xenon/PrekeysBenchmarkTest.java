@@ -0,0 +1,60 @@
+package com.wire.xenon;
+
+import com.wire.xenon.crypto.storage.PrekeysDAO;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Storing a top-up of prekeys one insert at a time and in one batch
+ */
+@Tag("benchmark")
+public class PrekeysBenchmarkTest extends DatabaseTestBase {
+    private static final int PREKEY_SIZE = 80;
+
+    @Test
+    public void batchInsertLatency() throws Exception {
+        PrekeysDAO prekeysDAO = jdbi.onDemand(PrekeysDAO.class);
+        Random random = new Random();
+        List<String> ids = new ArrayList<>();
+
+        try {
+            for (int count : new int[]{100, 500, 1000}) {
+                List<Integer> kids = new ArrayList<>();
+                List<byte[]> data = new ArrayList<>();
+                for (int kid = 0; kid < count; kid++) {
+                    byte[] prekey = new byte[PREKEY_SIZE];
+                    random.nextBytes(prekey);
+                    kids.add(kid);
+                    data.add(prekey);
+                }
+
+                Benchmark.measure("insert one by one, prekeys: " + count, 2, 5, () -> {
+                    String id = newId(ids);
+                    for (int i = 0; i < count; i++) {
+                        prekeysDAO.insert(id, kids.get(i), data.get(i));
+                    }
+                });
+                Benchmark.measure("insert batch, prekeys: " + count, 2, 5, () -> {
+                    String id = newId(ids);
+                    prekeysDAO.insert(id, kids, data);
+                    assertEquals(count, prekeysDAO.get(id).size());
+                });
+            }
+        } finally {
+            ids.forEach(prekeysDAO::delete);
+        }
+    }
+
+    private static String newId(List<String> ids) {
+        String ret = UUID.randomUUID().toString();
+        ids.add(ret);
+        return ret;
+    }
+}
@@ -0,0 +1,86 @@
+package com.wire.xenon;
+
+import com.wire.xenon.backend.models.QualifiedId;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Map lookups and session keys of {@link QualifiedId}, against an id that hashes with {@code Objects.hash} and
+ * formats its key on every call as before
+ */
+@Tag("benchmark")
+public class QualifiedIdBenchmarkTest {
+    private static final int IDS = 1_000;
+
+    private int found;
+    private int length;
+
+    @Test
+    public void cachedHashAndKey() throws Exception {
+        QualifiedId[] ids = new QualifiedId[IDS];
+        PlainId[] plainIds = new PlainId[IDS];
+        HashMap<QualifiedId, Integer> map = new HashMap<>();
+        HashMap<PlainId, Integer> plainMap = new HashMap<>();
+        for (int i = 0; i < IDS; i++) {
+            UUID id = UUID.randomUUID();
+            ids[i] = QualifiedId.of(id, "wire.com");
+            plainIds[i] = new PlainId(id, "wire.com");
+            map.put(new QualifiedId(id, "wire.com"), i);
+            plainMap.put(new PlainId(id, "wire.com"), i);
+        }
+
+        Benchmark.measure("lookup Objects.hash, ids: " + IDS, 2_000, 2_000, () -> {
+            for (PlainId id : plainIds) {
+                found += plainMap.get(id) >= 0 ? 1 : 0;
+            }
+        });
+        Benchmark.measure("lookup QualifiedId, ids: " + IDS, 2_000, 2_000, () -> {
+            for (QualifiedId id : ids) {
+                found += map.get(id) >= 0 ? 1 : 0;
+            }
+        });
+        Benchmark.Result formatted = Benchmark.measure("session key String.format, ids: " + IDS, 200, 200, () -> {
+            for (PlainId id : plainIds) {
+                length += String.format("%s_%s", id.id, id.domain).length();
+            }
+        });
+        Benchmark.Result cached = Benchmark.measure("session key QualifiedId, ids: " + IDS, 200, 200, () -> {
+            for (QualifiedId id : ids) {
+                length += id.toString().length();
+            }
+        });
+
+        assertEquals(2 * 4_000 * IDS, found);
+        assertTrue(cached.bytesPerOp < formatted.bytesPerOp);
+    }
+
+    private static final class PlainId {
+        private final UUID id;
+        private final String domain;
+
+        PlainId(UUID id, String domain) {
+            this.id = id;
+            this.domain = domain;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PlainId)) return false;
+            PlainId other = (PlainId) o;
+            return Objects.equals(id, other.id) && Objects.equals(domain, other.domain);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, domain);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.wire.xenon;
+
+import com.wire.xenon.exceptions.HttpException;
+import com.wire.xenon.outbound.ConcurrencyLimiter;
+import com.wire.xenon.outbound.RetryPolicy;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void retriesThrottledCallAfterRetryAfter() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(16, 1, 32);
+        RetryPolicy policy = new RetryPolicy(3, Duration.ofSeconds(10), Duration.ofSeconds(10), limiter);
+        AtomicInteger attempts = new AtomicInteger();
+
+        long start = System.currentTimeMillis();
+        String result = policy.call(() -> {
+            if (attempts.incrementAndGet() == 1) {
+                HttpException e = new HttpException("too many requests", 429);
+                e.setRetryAfter(50);
+                throw e;
+            }
+            return "ok";
+        });
+
+        assertEquals("ok", result);
+        assertEquals(2, attempts.get());
+        // Retry-After is used instead of the (much longer) backoff
+        assertTrue(System.currentTimeMillis() - start < 5_000);
+        assertEquals(8, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void doesNotRetryClientErrors() {
+        RetryPolicy policy = new RetryPolicy(3, Duration.ofMillis(1), Duration.ofMillis(1), null);
+        AtomicInteger attempts = new AtomicInteger();
+
+        HttpException e = assertThrows(HttpException.class, () -> policy.call(() -> {
+            attempts.incrementAndGet();
+            throw new HttpException("forbidden", 403);
+        }));
+
+        assertEquals(403, e.getCode());
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() {
+        RetryPolicy policy = new RetryPolicy(3, Duration.ofMillis(1), Duration.ofMillis(5), null);
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertThrows(HttpException.class, () -> policy.call(() -> {
+            attempts.incrementAndGet();
+            throw new HttpException("unavailable", 503);
+        }));
+
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void failsFastWhenRetryAfterExceedsMaxDelay() {
+        RetryPolicy policy = new RetryPolicy(3, Duration.ofMillis(1), Duration.ofSeconds(1), null);
+        AtomicInteger attempts = new AtomicInteger();
+
+        long start = System.currentTimeMillis();
+        HttpException e = assertThrows(HttpException.class, () -> policy.call(() -> {
+            attempts.incrementAndGet();
+            HttpException throttled = new HttpException("too many requests", 429);
+            throttled.setRetryAfter(3_600_000);
+            throw throttled;
+        }));
+
+        assertEquals(429, e.getCode());
+        assertEquals(1, attempts.get());
+        assertTrue(System.currentTimeMillis() - start < 5_000);
+    }
+}
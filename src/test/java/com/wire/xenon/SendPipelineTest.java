@@ -0,0 +1,85 @@
+package com.wire.xenon;
+
+import com.wire.xenon.models.SendReport;
+import com.wire.xenon.outbound.SendPipeline;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SendPipelineTest {
+
+    @Test
+    public void keepsOrderPerConversation() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            SendPipeline pipeline = new SendPipeline(executor, executor, 16);
+            List<Integer> sent = Collections.synchronizedList(new ArrayList<>());
+            List<CompletableFuture<SendReport>> futures = new ArrayList<>();
+
+            for (int i = 0; i < 10; i++) {
+                final int n = i;
+                futures.add(pipeline.submit("conversation", () -> n, t -> {
+                    // earlier messages take longer to send
+                    Thread.sleep(10 - t);
+                    sent.add(t);
+                    return new SendReport(UUID.randomUUID(), 1, null);
+                }));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+
+            assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), sent);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void encryptsNextWhileSendingPrevious() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            SendPipeline pipeline = new SendPipeline(executor, executor, 16);
+            CountDownLatch secondEncrypted = new CountDownLatch(1);
+
+            CompletableFuture<SendReport> first = pipeline.submit("conversation", () -> 1, t -> {
+                // the first send can only finish once the second message got encrypted
+                assertTrue(secondEncrypted.await(5, TimeUnit.SECONDS));
+                return new SendReport(UUID.randomUUID(), 1, null);
+            });
+            CompletableFuture<SendReport> second = pipeline.submit("conversation", () -> {
+                secondEncrypted.countDown();
+                return 2;
+            }, t -> new SendReport(UUID.randomUUID(), 1, null));
+
+            first.get(5, TimeUnit.SECONDS);
+            second.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void failureDoesNotBlockNextMessage() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            SendPipeline pipeline = new SendPipeline(executor, executor, 16);
+
+            CompletableFuture<SendReport> first = pipeline.submit("conversation", () -> {
+                throw new IllegalStateException("boom");
+            }, t -> new SendReport(UUID.randomUUID(), 1, null));
+            CompletableFuture<SendReport> second = pipeline.submit("conversation", () -> 2,
+                    t -> new SendReport(UUID.randomUUID(), 2, null));
+
+            ExecutionException e = assertThrows(ExecutionException.class, () -> first.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalStateException.class, e.getCause());
+            assertEquals(2, second.get(5, TimeUnit.SECONDS).getRecipients());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
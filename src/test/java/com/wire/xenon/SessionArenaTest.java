@@ -0,0 +1,84 @@
+package com.wire.xenon;
+
+import com.wire.xenon.crypto.storage.SessionArena;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SessionArenaTest {
+
+    @Test
+    public void storesSessionsOffHeap() {
+        SessionArena arena = new SessionArena(100, Duration.ofMinutes(1), 16 << 20);
+        byte[] small = blob(100, 1);
+        byte[] large = blob(5000, 2);
+
+        arena.put("bot", "alice_1", small);
+        arena.put("bot", "bob_1", large);
+        arena.put("bot", "carol_1", null);
+        // too big to be cached
+        arena.put("bot", "dave_1", new byte[100_000]);
+
+        assertArrayEquals(small, arena.get("bot", "alice_1").data);
+        assertArrayEquals(large, arena.get("bot", "bob_1").data);
+        assertNull(arena.get("bot", "carol_1").data);
+        assertNull(arena.get("bot", "dave_1"));
+
+        // the freed slot is reused for the update
+        arena.put("bot", "alice_1", blob(200, 3));
+        assertArrayEquals(blob(200, 3), arena.get("bot", "alice_1").data);
+        assertEquals(2 << 20, arena.getAllocated());
+
+        arena.remove("bot");
+        assertEquals(0, arena.size());
+        assertNull(arena.get("bot", "bob_1"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedOfTheSizeClass() {
+        // one slab of 1MB holds 4096 sessions of up to 256 bytes
+        SessionArena arena = new SessionArena(10_000, Duration.ofMinutes(1), 1 << 20);
+        for (int i = 0; i < 4096; i++) {
+            arena.put("bot", "s" + i, blob(256, i));
+        }
+        arena.get("bot", "s0");
+        arena.put("bot", "s4096", blob(256, 7));
+
+        assertNotNull(arena.get("bot", "s0"));
+        assertNull(arena.get("bot", "s1"));
+        assertArrayEquals(blob(256, 7), arena.get("bot", "s4096").data);
+        assertEquals(1 << 20, arena.getAllocated());
+    }
+
+    @Test
+    public void slabsMoveBetweenSizeClasses() {
+        // one slab full of small sessions and one with only a few
+        SessionArena arena = new SessionArena(10_000, Duration.ofMinutes(1), 2 << 20);
+        for (int i = 0; i < 4100; i++) {
+            arena.put("bot", "s" + i, blob(256, 1));
+        }
+        assertEquals(2 << 20, arena.getAllocated());
+
+        // a size class without memory takes over the slab with the fewest sessions
+        arena.put("bot", "large", blob(1000, 2));
+        assertArrayEquals(blob(1000, 2), arena.get("bot", "large").data);
+        assertNotNull(arena.get("bot", "s0"));
+        assertNull(arena.get("bot", "s4099"));
+        assertEquals(4096 + 1, arena.size());
+
+        // slabs emptied by the removal go back to the pool and are reused without allocating
+        arena.remove("bot");
+        arena.put("bot", "huge", blob(60_000, 3));
+        assertArrayEquals(blob(60_000, 3), arena.get("bot", "huge").data);
+        assertEquals(2 << 20, arena.getAllocated());
+    }
+
+    private static byte[] blob(int length, int fill) {
+        byte[] ret = new byte[length];
+        Arrays.fill(ret, (byte) fill);
+        return ret;
+    }
+}
@@ -0,0 +1,150 @@
+package com.wire.xenon;
+
+import com.wire.bots.cryptobox.IRecord;
+import com.wire.xenon.crypto.storage.*;
+import org.jdbi.v3.core.Jdbi;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class SessionBatchTest {
+
+    @Test
+    public void updatesAreWrittenInOneBatchOnCommit() {
+        SessionsDAO sessionsDAO = mock(SessionsDAO.class);
+        JdbiStorage storage = new JdbiStorage(jdbi(sessionsDAO));
+
+        try (SessionBatch batch = storage.beginBatch("bot")) {
+            storage.fetchSession("bot", "alice_1").persist(new byte[]{1});
+            storage.fetchSession("bot", "bob_1").persist(new byte[]{2});
+            // the pending update is visible to the next operation on the session
+            IRecord record = storage.fetchSession("bot", "alice_1");
+            assertArrayEquals(new byte[]{1}, record.getData());
+            record.persist(new byte[]{3});
+
+            verify(sessionsDAO, never()).insert(anyString(), anyString(), any(byte[].class));
+            assertEquals(2, batch.commit());
+        }
+
+        verify(sessionsDAO).insert(eq("bot"), eq(List.of("alice_1", "bob_1")), argThat((List<byte[]> data) ->
+                data.size() == 2 && data.get(0)[0] == 3 && data.get(1)[0] == 2));
+
+        // outside of the batch every update is written directly
+        storage.fetchSession("bot", "alice_1").persist(new byte[]{4});
+        verify(sessionsDAO).insert("bot", "alice_1", new byte[]{4});
+    }
+
+    @Test
+    public void failedCommitFailsTheBatch() {
+        SessionsDAO sessionsDAO = mock(SessionsDAO.class);
+        when(sessionsDAO.insert(anyString(), anyList(), anyList())).thenThrow(new IllegalStateException("db down"));
+        JdbiStorage storage = new JdbiStorage(jdbi(sessionsDAO));
+
+        SessionBatch batch = storage.beginBatch("bot");
+        SessionBatch joined = storage.beginBatch("bot");
+        assertSame(batch, joined);
+
+        storage.fetchSession("bot", "alice_1").persist(new byte[]{1});
+        assertThrows(IllegalStateException.class, batch::commit);
+        storage.fetchSession("bot", "bob_1").persist(new byte[]{2});
+        // the update of the other user of the batch is lost as well, so it must not be reported as durable
+        assertThrows(IllegalStateException.class, joined::commit);
+
+        batch.close();
+        joined.close();
+        assertNotSame(batch, storage.beginBatch("bot"));
+    }
+
+    @Test
+    public void otherThreadsWriteThrough() throws Exception {
+        SessionsDAO sessionsDAO = mock(SessionsDAO.class);
+        JdbiStorage storage = new JdbiStorage(jdbi(sessionsDAO));
+
+        try (SessionBatch batch = storage.beginBatch("bot")) {
+            storage.fetchSession("bot", "alice_1").persist(new byte[]{1});
+
+            Thread other = new Thread(() -> {
+                // sees the update of the batch, but its own update is durable when persist returns
+                IRecord record = storage.fetchSession("bot", "alice_1");
+                assertArrayEquals(new byte[]{1}, record.getData());
+                record.persist(new byte[]{2});
+            });
+            other.start();
+            other.join();
+            verify(sessionsDAO).insert("bot", "alice_1", new byte[]{2});
+
+            // the fan-out of the owner writes into the batch
+            Thread fanOut = new Thread(() -> storage.runInBatch(batch,
+                    () -> storage.fetchSession("bot", "bob_1").persist(new byte[]{3})));
+            fanOut.start();
+            fanOut.join();
+            verify(sessionsDAO, never()).insert("bot", "bob_1", new byte[]{3});
+
+            assertArrayEquals(new byte[]{2}, storage.fetchSession("bot", "alice_1").getData());
+            assertEquals(2, batch.commit());
+        }
+
+        // the commit does not bring back the state the other thread replaced
+        verify(sessionsDAO).insert(eq("bot"), eq(List.of("alice_1", "bob_1")), argThat((List<byte[]> data) ->
+                data.size() == 2 && data.get(0)[0] == 2 && data.get(1)[0] == 3));
+        assertNull(storage.currentBatch());
+    }
+
+    @Test
+    public void prefetchLoadsTheSessionsInOneQuery() {
+        SessionsDAO sessionsDAO = mock(SessionsDAO.class);
+        Session alice = new Session();
+        alice.id = "bot";
+        alice.sid = "alice_1";
+        alice.data = new byte[]{1};
+        when(sessionsDAO.get(eq("bot"), any(String[].class))).thenReturn(List.of(alice));
+        JdbiStorage storage = new JdbiStorage(jdbi(sessionsDAO));
+
+        // nothing holds the sessions without a batch
+        assertEquals(0, storage.prefetch("bot", List.of("alice_1", "bob_1")));
+
+        try (SessionBatch ignored = storage.beginBatch("bot")) {
+            assertEquals(1, storage.prefetch("bot", List.of("alice_1", "bob_1")));
+            assertArrayEquals(new byte[]{1}, storage.fetchSession("bot", "alice_1").getData());
+            assertNull(storage.fetchSession("bot", "bob_1").getData());
+            // known sessions are not loaded again
+            assertEquals(0, storage.prefetch("bot", List.of("alice_1", "bob_1")));
+        }
+
+        verify(sessionsDAO).get("bot", new String[]{"alice_1", "bob_1"});
+        verify(sessionsDAO, never()).get(anyString(), anyString());
+    }
+
+    @Test
+    public void preKeysAreInsertedInOneBatch() {
+        PrekeysDAO prekeysDAO = mock(PrekeysDAO.class);
+        JdbiStorage storage = new JdbiStorage(jdbi(mock(SessionsDAO.class), prekeysDAO));
+
+        try (SessionBatch batch = storage.beginBatch("bot")) {
+            for (int kid = 0; kid < 100; kid++) {
+                storage.insertPrekey("bot", kid, new byte[]{(byte) kid});
+            }
+            assertEquals(100, batch.commit());
+        }
+
+        verify(prekeysDAO).insert(eq("bot"), argThat((List<Integer> kids) -> kids.size() == 100 && kids.get(99) == 99),
+                argThat((List<byte[]> data) -> data.size() == 100 && data.get(99)[0] == 99));
+        verify(prekeysDAO, never()).insert(anyString(), anyInt(), any(byte[].class));
+    }
+
+    private static Jdbi jdbi(SessionsDAO sessionsDAO) {
+        return jdbi(sessionsDAO, mock(PrekeysDAO.class));
+    }
+
+    private static Jdbi jdbi(SessionsDAO sessionsDAO, PrekeysDAO prekeysDAO) {
+        Jdbi jdbi = mock(Jdbi.class);
+        when(jdbi.onDemand(SessionsDAO.class)).thenReturn(sessionsDAO);
+        when(jdbi.onDemand(IdentitiesDAO.class)).thenReturn(mock(IdentitiesDAO.class));
+        when(jdbi.onDemand(PrekeysDAO.class)).thenReturn(prekeysDAO);
+        return jdbi;
+    }
+}
@@ -0,0 +1,104 @@
+package com.wire.xenon;
+
+import com.wire.bots.cryptobox.IRecord;
+import com.wire.xenon.crypto.storage.*;
+import org.jdbi.v3.core.Jdbi;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class SessionCacheTest {
+
+    @Test
+    public void repeatedFetchHitsMemory() {
+        SessionsDAO sessionsDAO = mock(SessionsDAO.class);
+        Session session = new Session();
+        session.data = new byte[]{1};
+        when(sessionsDAO.get("bot", "alice_1")).thenReturn(session);
+        JdbiStorage storage = new JdbiStorage(jdbi(sessionsDAO), 10, Duration.ofMinutes(1));
+
+        IRecord first = storage.fetchSession("bot", "alice_1");
+        first.persist(new byte[]{2});
+        IRecord second = storage.fetchSession("bot", "alice_1");
+
+        assertArrayEquals(new byte[]{2}, second.getData());
+        verify(sessionsDAO, times(1)).get("bot", "alice_1");
+        verify(sessionsDAO).insert("bot", "alice_1", new byte[]{2});
+        assertEquals(1, storage.getSessionCache().getHits());
+        assertEquals(1, storage.getSessionCache().getMisses());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        SessionCache cache = new SessionCache(2, Duration.ofMinutes(1));
+        cache.put("bot", "a", new byte[]{1});
+        cache.put("bot", "b", new byte[]{2});
+        cache.get("bot", "a");
+        cache.put("bot", "c", null);
+
+        assertNotNull(cache.get("bot", "a"));
+        assertNull(cache.get("bot", "b"));
+        // absent session is cached too
+        assertNull(cache.get("bot", "c").data);
+
+        cache.remove("bot");
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void withoutCacheEveryFetchGoesToDatabase() {
+        SessionsDAO sessionsDAO = mock(SessionsDAO.class);
+        JdbiStorage storage = new JdbiStorage(jdbi(sessionsDAO));
+
+        storage.fetchSession("bot", "alice_1");
+        storage.fetchSession("bot", "alice_1");
+
+        verify(sessionsDAO, times(2)).get(anyString(), anyString());
+        assertNull(storage.getSessionCache());
+    }
+
+    @Test
+    public void identityIsLoadedOnceWithIdentityCache() {
+        String botId = UUID.randomUUID().toString();
+        IdentitiesDAO identitiesDAO = mock(IdentitiesDAO.class);
+        IdentitiesDAO._Identity identity = new IdentitiesDAO._Identity();
+        identity.data = new byte[]{1};
+        when(identitiesDAO.get(botId)).thenReturn(identity);
+        IdentityCache identityCache = new IdentityCache(10, Duration.ofMinutes(1));
+
+        // every open of the box creates a new storage
+        assertArrayEquals(new byte[]{1}, storage(identitiesDAO, identityCache).fetchIdentity(botId));
+        assertArrayEquals(new byte[]{1}, storage(identitiesDAO, identityCache).fetchIdentity(botId));
+        verify(identitiesDAO, times(1)).get(botId);
+        assertEquals(1, identityCache.getMisses());
+
+        storage(identitiesDAO, identityCache).purge(botId);
+        storage(identitiesDAO, identityCache).fetchIdentity(botId);
+        verify(identitiesDAO, times(2)).get(botId);
+
+        // nothing is cached unless asked for
+        new JdbiStorage(jdbi(mock(SessionsDAO.class), identitiesDAO)).fetchIdentity(botId);
+        verify(identitiesDAO, times(3)).get(botId);
+    }
+
+    private static JdbiStorage storage(IdentitiesDAO identitiesDAO, IdentityCache identityCache) {
+        return new JdbiStorage(jdbi(mock(SessionsDAO.class), identitiesDAO), null, identityCache);
+    }
+
+    private static Jdbi jdbi(SessionsDAO sessionsDAO) {
+        return jdbi(sessionsDAO, mock(IdentitiesDAO.class));
+    }
+
+    private static Jdbi jdbi(SessionsDAO sessionsDAO, IdentitiesDAO identitiesDAO) {
+        Jdbi jdbi = mock(Jdbi.class);
+        when(jdbi.onDemand(SessionsDAO.class)).thenReturn(sessionsDAO);
+        when(jdbi.onDemand(IdentitiesDAO.class)).thenReturn(identitiesDAO);
+        when(jdbi.onDemand(PrekeysDAO.class)).thenReturn(mock(PrekeysDAO.class));
+        return jdbi;
+    }
+}
@@ -0,0 +1,94 @@
+package com.wire.xenon;
+
+import com.wire.bots.cryptobox.PreKey;
+import com.wire.xenon.crypto.storage.*;
+import org.jdbi.v3.core.Jdbi;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class SessionIndexTest {
+
+    @Test
+    public void missingSessionsSkipTheDatabase() {
+        SessionsDAO sessionsDAO = mock(SessionsDAO.class);
+        Session session = new Session();
+        session.data = new byte[]{1};
+        when(sessionsDAO.getSids("bot")).thenReturn(List.of("alice_1"));
+        when(sessionsDAO.get("bot", "alice_1")).thenReturn(session);
+        JdbiStorage storage = new JdbiStorage(jdbi(sessionsDAO), 10, Duration.ofMinutes(1), 10);
+
+        assertNull(storage.fetchSession("bot", "bob_1").getData());
+        assertNull(storage.fetchSession("bot", "carol_1").getData());
+        assertArrayEquals(new byte[]{1}, storage.fetchSession("bot", "alice_1").getData());
+        verify(sessionsDAO, times(1)).getSids("bot");
+        verify(sessionsDAO, never()).get("bot", "bob_1");
+
+        // a session created by this process is seen right away
+        storage.fetchSession("bot", "dave_1").persist(new byte[]{2});
+        storage.getSessionCache().remove("bot");
+        storage.fetchSession("bot", "dave_1");
+        verify(sessionsDAO).get("bot", "dave_1");
+
+        storage.purge("bot");
+        assertEquals(0, storage.getSessionIndex().size());
+    }
+
+    @Test
+    public void indexGrowsWithoutLosingSessions() {
+        List<String> sids = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            sids.add("user_" + i);
+        }
+        SessionIndex index = new SessionIndex(1, Duration.ofMinutes(1), id -> sids);
+
+        for (String sid : sids) {
+            assertTrue(index.mightExist("bot", sid));
+        }
+        assertFalse(index.mightExist("bot", "user_1000"));
+        index.add("bot", "user_1000");
+        assertTrue(index.mightExist("bot", "user_1000"));
+
+        // least recently used box is dropped
+        index.mightExist("other", "user_1");
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void preKeysAreLookedUpInMemory() {
+        PrekeysDAO prekeysDAO = mock(PrekeysDAO.class);
+        when(prekeysDAO.get("bot")).thenReturn(List.of(new PreKey(1, new byte[]{1}), new PreKey(2, new byte[]{2})));
+        JdbiStorage storage = new JdbiStorage(jdbi(mock(SessionsDAO.class), prekeysDAO), 10, Duration.ofMinutes(1), 10, 10);
+
+        assertEquals(2, storage.fetchPrekeys("bot").length);
+        storage.insertPrekey("bot", 3, new byte[]{3});
+        PreKey[] preKeys = storage.fetchPrekeys("bot");
+        assertEquals(3, preKeys.length);
+        assertTrue(Arrays.stream(preKeys).anyMatch(preKey -> preKey.id == 3 && preKey.data[0] == 3));
+        verify(prekeysDAO, times(1)).get("bot");
+
+        // the session index alone keeps no prekeys
+        JdbiStorage sessionsOnly = new JdbiStorage(jdbi(mock(SessionsDAO.class), prekeysDAO), 10, Duration.ofMinutes(1), 10);
+        assertNull(sessionsOnly.getPreKeyIndex());
+        sessionsOnly.fetchPrekeys("bot");
+        verify(prekeysDAO, times(2)).get("bot");
+    }
+
+    private static Jdbi jdbi(SessionsDAO sessionsDAO) {
+        return jdbi(sessionsDAO, mock(PrekeysDAO.class));
+    }
+
+    private static Jdbi jdbi(SessionsDAO sessionsDAO, PrekeysDAO prekeysDAO) {
+        Jdbi jdbi = mock(Jdbi.class);
+        when(jdbi.onDemand(SessionsDAO.class)).thenReturn(sessionsDAO);
+        when(jdbi.onDemand(IdentitiesDAO.class)).thenReturn(mock(IdentitiesDAO.class));
+        when(jdbi.onDemand(PrekeysDAO.class)).thenReturn(prekeysDAO);
+        return jdbi;
+    }
+}
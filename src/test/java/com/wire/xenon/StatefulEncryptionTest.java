@@ -2,11 +2,16 @@ package com.wire.xenon;
 
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.waz.model.Messages;
+import com.wire.bots.cryptobox.IRecord;
 import com.wire.bots.cryptobox.IStorage;
+import com.wire.bots.cryptobox.StorageException;
 import com.wire.xenon.assets.MessageText;
 import com.wire.xenon.backend.models.QualifiedId;
+import com.wire.xenon.crypto.Cipher;
 import com.wire.xenon.crypto.CryptoDatabase;
+import com.wire.xenon.crypto.DecryptResult;
 import com.wire.xenon.crypto.storage.JdbiStorage;
+import com.wire.xenon.models.otr.Missing;
 import com.wire.xenon.models.otr.PreKey;
 import com.wire.xenon.models.otr.PreKeys;
 import com.wire.xenon.models.otr.Recipients;
@@ -14,7 +19,9 @@ import org.junit.jupiter.api.Test;
 
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
 
 public class StatefulEncryptionTest extends DatabaseTestBase {
     @Test
@@ -51,9 +58,105 @@ public class StatefulEncryptionTest extends DatabaseTestBase {
 
     }
 
+    @Test
+    public void testDecryptBatch() throws Exception {
+        QualifiedId aliceId = new QualifiedId(UUID.randomUUID(), UUID.randomUUID().toString());
+        QualifiedId bobId = new QualifiedId(UUID.randomUUID(), UUID.randomUUID().toString());
+        String rootFolder = "xenon-unit-test-" + UUID.randomUUID();
+        IStorage storage = new JdbiStorage(jdbi);
+
+        CryptoDatabase alice = new CryptoDatabase(aliceId, storage, rootFolder + "/testDecryptBatch/alice");
+        CryptoDatabase bob = new CryptoDatabase(bobId, storage, rootFolder + "/testDecryptBatch/bob");
+        bob.setEncryptionExecutor(ForkJoinPool.commonPool(), 0);
+
+        // Alice sends a burst of messages to Bob while he is offline
+        PreKeys bobPreKeys = new PreKeys(bob.newPreKeys(0, 10), "bob1", bobId);
+        List<Cipher> ciphers = new ArrayList<>();
+        Recipients first = alice.encrypt(bobPreKeys, new MessageText("0").createGenericMsg().toByteArray());
+        ciphers.add(new Cipher(aliceId, "alice1", first.get(bobId, "bob1")));
+        for (int i = 1; i < 10; i++) {
+            Missing missing = new Missing();
+            missing.add(bobId, "bob1");
+            Recipients next = alice.encrypt(missing, new MessageText("" + i).createGenericMsg().toByteArray());
+            ciphers.add(new Cipher(aliceId, "alice1", next.get(bobId, "bob1")));
+        }
+        ciphers.add(new Cipher(aliceId, "alice2", Base64.getEncoder().encodeToString(new byte[]{1, 2, 3})));
+
+        List<DecryptResult> results = bob.decryptBatch(ciphers);
+
+        assert results.size() == 11;
+        for (int i = 0; i < 10; i++) {
+            assert ("" + i).equals(Messages.GenericMessage.parseFrom(results.get(i).get()).getText().getContent());
+        }
+        assert !results.get(10).isOk();
+    }
+
+    @Test
+    public void testOtherStorage() throws Exception {
+        QualifiedId aliceId = new QualifiedId(UUID.randomUUID(), UUID.randomUUID().toString());
+        QualifiedId bobId = new QualifiedId(UUID.randomUUID(), UUID.randomUUID().toString());
+        String rootFolder = "xenon-unit-test-" + UUID.randomUUID();
+        // any IStorage, not only the JdbiStorage
+        IStorage storage = new ForwardingStorage(new JdbiStorage(jdbi));
+
+        CryptoDatabase alice = new CryptoDatabase(aliceId, storage, rootFolder + "/testOtherStorage/alice");
+        CryptoDatabase bob = new CryptoDatabase(bobId, storage, rootFolder + "/testOtherStorage/bob");
+
+        PreKeys bobPreKeys = new PreKeys(bob.newPreKeys(0, 10), "bob1", bobId);
+        Recipients first = alice.encrypt(bobPreKeys, new MessageText("0").createGenericMsg().toByteArray());
+        Missing missing = new Missing();
+        missing.add(bobId, "bob1");
+        Recipients next = alice.encrypt(missing, new MessageText("1").createGenericMsg().toByteArray());
+
+        List<DecryptResult> results = bob.decryptBatch(List.of(
+                new Cipher(aliceId, "alice1", first.get(bobId, "bob1")),
+                new Cipher(aliceId, "alice1", next.get(bobId, "bob1"))));
+
+        assert "0".equals(Messages.GenericMessage.parseFrom(results.get(0).get()).getText().getContent());
+        assert "1".equals(Messages.GenericMessage.parseFrom(results.get(1).get()).getText().getContent());
+    }
+
     private String getText(String decrypt) throws InvalidProtocolBufferException {
         byte[] decoded = Base64.getDecoder().decode(decrypt);
         Messages.GenericMessage genericMessage = Messages.GenericMessage.parseFrom(decoded);
         return genericMessage.getText().getContent();
     }
+
+    private static class ForwardingStorage implements IStorage {
+        private final IStorage storage;
+
+        ForwardingStorage(IStorage storage) {
+            this.storage = storage;
+        }
+
+        @Override
+        public IRecord fetchSession(String id, String sid) throws StorageException {
+            return storage.fetchSession(id, sid);
+        }
+
+        @Override
+        public byte[] fetchIdentity(String id) throws StorageException {
+            return storage.fetchIdentity(id);
+        }
+
+        @Override
+        public void insertIdentity(String id, byte[] data) throws StorageException {
+            storage.insertIdentity(id, data);
+        }
+
+        @Override
+        public com.wire.bots.cryptobox.PreKey[] fetchPrekeys(String id) throws StorageException {
+            return storage.fetchPrekeys(id);
+        }
+
+        @Override
+        public void insertPrekey(String id, int kid, byte[] data) throws StorageException {
+            storage.insertPrekey(id, kid, data);
+        }
+
+        @Override
+        public void purge(String id) throws StorageException {
+            storage.purge(id);
+        }
+    }
 }
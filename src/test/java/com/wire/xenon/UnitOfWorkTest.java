@@ -0,0 +1,97 @@
+package com.wire.xenon;
+
+import com.wire.xenon.state.JdbiState;
+import com.wire.xenon.state.StatesDAO;
+import com.wire.xenon.tools.UnitOfWork;
+import org.jdbi.v3.core.Handle;
+import org.jdbi.v3.core.Jdbi;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class UnitOfWorkTest {
+
+    @Test
+    public void daosRunOnTheHandleOfTheUnitOfWork() {
+        UUID botId = UUID.randomUUID();
+        StatesDAO onDemand = mock(StatesDAO.class);
+        StatesDAO attached = mock(StatesDAO.class);
+        Handle handle = mock(Handle.class);
+        when(handle.attach(StatesDAO.class)).thenReturn(attached);
+        Jdbi jdbi = mock(Jdbi.class);
+        when(jdbi.onDemand(StatesDAO.class)).thenReturn(onDemand);
+        when(jdbi.open()).thenReturn(handle);
+        JdbiState state = new JdbiState(botId, jdbi);
+
+        try (UnitOfWork uow = UnitOfWork.begin(jdbi, botId)) {
+            assertTrue(UnitOfWork.isOpen());
+            state.removeState();
+            state.removeState();
+            assertThrows(IllegalStateException.class, () -> UnitOfWork.begin(jdbi, botId));
+
+            UnitOfWork.checkpoint(jdbi);
+            uow.commit();
+        }
+        assertFalse(UnitOfWork.isOpen());
+        state.removeState();
+
+        verify(attached, times(2)).delete(botId);
+        verify(onDemand).delete(botId);
+        verify(handle, times(1)).attach(StatesDAO.class);
+        verify(handle, times(2)).begin();
+        verify(handle, times(2)).commit();
+        verify(handle, never()).rollback();
+        verify(handle).close();
+    }
+
+    @Test
+    public void rollsBackUnlessCommitted() {
+        UUID botId = UUID.randomUUID();
+        Handle handle = mock(Handle.class);
+        Jdbi jdbi = mock(Jdbi.class);
+        when(jdbi.open()).thenReturn(handle);
+
+        try (UnitOfWork ignored = UnitOfWork.begin(jdbi, botId)) {
+            // failed processing
+        }
+        verify(handle).rollback();
+        verify(handle).close();
+
+        // other Jdbis are not affected
+        StatesDAO onDemand = mock(StatesDAO.class);
+        try (UnitOfWork ignored = UnitOfWork.begin(jdbi, botId)) {
+            assertSame(onDemand, UnitOfWork.attach(mock(Jdbi.class), StatesDAO.class, onDemand));
+        }
+    }
+
+    @Test
+    public void otherBotsDoNotWait() throws Exception {
+        Jdbi jdbi = mock(Jdbi.class);
+        when(jdbi.open()).thenAnswer(invocation -> mock(Handle.class));
+        UUID botId = UUID.randomUUID();
+
+        try (UnitOfWork ignored = UnitOfWork.begin(jdbi, botId)) {
+            CompletableFuture<Boolean> other = CompletableFuture.supplyAsync(() -> {
+                try (UnitOfWork uow = UnitOfWork.begin(jdbi, UUID.randomUUID())) {
+                    uow.commit();
+                    return true;
+                }
+            });
+            assertTrue(other.get(5, TimeUnit.SECONDS));
+
+            CompletableFuture<Boolean> same = CompletableFuture.supplyAsync(() -> {
+                try (UnitOfWork uow = UnitOfWork.begin(jdbi, botId)) {
+                    uow.commit();
+                    return true;
+                }
+            });
+            Thread.sleep(100);
+            assertFalse(same.isDone());
+        }
+    }
+}
@@ -1,11 +1,28 @@
 package com.wire.xenon;
 
+import com.wire.messages.Otr;
+import com.wire.xenon.assets.MessageText;
+import com.wire.xenon.backend.models.Conversation;
 import com.wire.xenon.backend.models.NewBot;
+import com.wire.xenon.backend.models.QualifiedId;
+import com.wire.xenon.cache.DevicesCache;
+import com.wire.xenon.crypto.Crypto;
 import com.wire.xenon.crypto.mls.CryptoMlsClient;
+import com.wire.xenon.models.otr.DeviceSet;
+import com.wire.xenon.models.otr.Devices;
+import com.wire.xenon.models.otr.OtrMessage;
+import com.wire.xenon.models.otr.OtrProtobuf;
+import com.wire.xenon.models.otr.RawRecipients;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.Duration;
+import java.util.UUID;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.*;
 
 public class WireClientBaseTest {
@@ -53,4 +70,85 @@ public class WireClientBaseTest {
         verify(mockCryptoMlsClient, times(1)).processWelcomeMessage(welcomeMessage);
         assertArrayEquals(expectedResponse, response);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void send_discoversDevicesOnlyOnce() throws Exception {
+        Crypto mockCrypto = mock(Crypto.class);
+        NewBot state = new NewBot();
+        state.id = UUID.randomUUID();
+        state.client = "client";
+        state.conversation = new Conversation();
+        state.conversation.id = new QualifiedId(UUID.randomUUID(), "wire.com");
+        WireClientBase client = new WireClientBase(mockApi, mockCrypto, mockCryptoMlsClient, state);
+        client.setDevicesCache(new DevicesCache(Duration.ofMinutes(1), null));
+
+        Devices discovery = new Devices();
+        discovery.missing.add(new QualifiedId(UUID.randomUUID(), "wire.com"), "bob1");
+        when(mockApi.sendMessage(any(OtrMessage.class), eq(false)))
+                .thenReturn(discovery)
+                .thenReturn(new Devices());
+        when(mockCrypto.encryptRaw(any(DeviceSet.class), any(byte[].class))).thenReturn(new RawRecipients());
+
+        client.send(new MessageText("first"));
+        client.send(new MessageText("second"));
+
+        // one discovery and two sends
+        verify(mockApi, times(3)).sendMessage(any(OtrMessage.class), eq(false));
+        verify(mockCrypto, times(2)).encryptRaw(argThat((DeviceSet d) -> d.toUserIds().equals(discovery.missing.toUserIds())), any(byte[].class));
+    }
+
+    @Test
+    public void send_postsRawCiphersAsProtobuf() throws Exception {
+        Crypto mockCrypto = mock(Crypto.class);
+        NewBot state = new NewBot();
+        state.id = UUID.randomUUID();
+        state.client = "4a3b";
+        state.conversation = new Conversation();
+        state.conversation.id = new QualifiedId(UUID.randomUUID(), "wire.com");
+        WireClientBase client = new WireClientBase(mockApi, mockCrypto, mockCryptoMlsClient, state);
+        client.setDevicesCache(new DevicesCache(Duration.ofMinutes(1), null));
+
+        QualifiedId bob = new QualifiedId(UUID.randomUUID(), "wire.com");
+        Devices discovery = new Devices();
+        discovery.missing.add(bob, "b0b1");
+        RawRecipients ciphers = new RawRecipients();
+        ciphers.add(bob, "b0b1", new byte[]{1, 2, 3});
+        when(mockApi.supportsProtobuf()).thenReturn(true);
+        when(mockApi.sendMessage(any(OtrMessage.class), eq(false))).thenReturn(discovery);
+        when(mockApi.sendMessage(any(Otr.QualifiedNewOtrMessage.class))).thenReturn(new Devices());
+        when(mockCrypto.encryptRaw(any(DeviceSet.class), any(byte[].class))).thenReturn(ciphers);
+
+        client.send(new MessageText("hello"));
+
+        ArgumentCaptor<Otr.QualifiedNewOtrMessage> captor = ArgumentCaptor.forClass(Otr.QualifiedNewOtrMessage.class);
+        verify(mockApi).sendMessage(captor.capture());
+        Otr.QualifiedNewOtrMessage msg = captor.getValue();
+        assertEquals(0x4a3bL, msg.getSender().getClient());
+        assertTrue(msg.hasReportAll());
+        Otr.ClientEntry entry = msg.getRecipients(0).getEntries(0).getClients(0);
+        assertEquals(0xb0b1L, entry.getClient().getClient());
+        assertArrayEquals(new byte[]{1, 2, 3}, entry.getText().toByteArray());
+        assertEquals(ciphers.toRecipients(), OtrProtobuf.toOtrMessage(msg).getRecipients());
+    }
+
+    @Test
+    public void protobuf_groupsUsersByDomain() {
+        QualifiedId alice = new QualifiedId(UUID.randomUUID(), "wire.com");
+        QualifiedId bob = new QualifiedId(UUID.randomUUID(), "wire.com");
+        QualifiedId carol = new QualifiedId(UUID.randomUUID(), "other.org");
+        RawRecipients ciphers = new RawRecipients();
+        ciphers.add(alice, "a1", new byte[]{1});
+        ciphers.add(alice, "a2", new byte[]{2});
+        ciphers.add(bob, "b1", new byte[]{3});
+        ciphers.add(carol, "c1", new byte[]{4});
+
+        Otr.QualifiedNewOtrMessage msg = OtrProtobuf.build("4a3b", ciphers, null, false);
+
+        assertEquals(2, msg.getRecipientsCount());
+        for (Otr.QualifiedUserEntry domain : msg.getRecipientsList()) {
+            int users = domain.getDomain().equals("wire.com") ? 2 : 1;
+            assertEquals(users, domain.getEntriesCount());
+        }
+        assertEquals(ciphers.toRecipients(), OtrProtobuf.toOtrMessage(msg).getRecipients());
+    }
+}